@@ -1,72 +1,275 @@
 package javaChat;
 import java.io.*;
 import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class ChatHttpClient {
     public static void main(String[] args) throws Exception {
+        String server = "http://localhost:8081";
+        String room = "main";
+        long batchMillis = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--room=")) room = arg.substring("--room=".length());
+            else if (arg.startsWith("--server=")) server = arg.substring("--server=".length()).replaceAll("/+$", "");
+            else if (arg.equals("--batch")) batchMillis = 50;
+            else if (arg.startsWith("--batch=")) batchMillis = Long.parseLong(arg.substring("--batch=".length()));
+        }
+        if (Arrays.asList(args).contains("--load")) {
+            LoadGenerator.fromArgs(server, args).run();
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         System.out.print("Enter your username: ");
         String user = scanner.nextLine().trim();
-        int lastMsg = 0;
+        String roomParam = "room=" + URLEncoder.encode(room, "UTF-8");
+        if (Arrays.asList(args).contains("--ws")) {
+            String webSocketBase = webSocketBase(server);
+            if (webSocketBase == null) {
+                System.out.println("The server has no WebSocket endpoint");
+                return;
+            }
+            runWebSocket(scanner, user, webSocketBase, roomParam);
+            return;
+        }
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String base = server + "/messages?" + roomParam + "&format=bin&user=" + URLEncoder.encode(user, "UTF-8");
+        Thread poller = new Thread(() -> poll(client, base), "chat-poller");
+        poller.setDaemon(true);
+        poller.start();
+
+        // Main loop: send messages
+        String sendUrl = server + "/send?" + roomParam + "&user=" + URLEncoder.encode(user, "UTF-8");
+        if (batchMillis > 0) {
+            sendBatched(scanner, client, sendUrl, batchMillis);
+            return;
+        }
+        while (scanner.hasNextLine()) {
+            String msg = scanner.nextLine();
+            if (msg.trim().isEmpty()) continue;
+            send(client, HttpRequest.newBuilder(URI.create(sendUrl + "&msg=" + URLEncoder.encode(msg, "UTF-8")))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), 1);
+        }
+    }
+
+    // Long-polls for new messages over one kept-alive connection; the server answers as soon as something arrives.
+    // Responses use the binary format: user names come once per response in a dictionary, texts as plain UTF-8.
+    // While messages are arriving quickly the next poll is held back a little (up to MAX_COALESCE_MILLIS) so one
+    // response carries several; a quiet room goes straight back to a long poll. Errors back off exponentially.
+    private static final int BUSY_MESSAGES = 5;
+    private static final long MAX_COALESCE_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private static void poll(HttpClient client, String base) {
+        long since = 0;
+        long coalesce = 0;
+        int failures = 0;
+        while (true) {
+            long pause;
+            try {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(base + "&since=" + since + "&wait=25000"))
+                        .timeout(Duration.ofSeconds(40)).build();
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                if (response.statusCode() != 200) {
+                    response.body().close();
+                    throw new RetryException(response.statusCode(), retryAfterMillis(response));
+                }
+                int count;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(response.body()))) {
+                    in.readLong();
+                    since = in.readLong();
+                    in.readLong();
+                    Map<Long, String> users = new HashMap<>();
+                    for (long i = readVarint(in); i > 0; i--) users.put(readVarint(in), readUtf8(in));
+                    count = (int) readVarint(in);
+                    for (int i = 0; i < count; i++) {
+                        String name = users.get(readVarint(in));
+                        readVarint(in);
+                        System.out.println(name + ": " + readUtf8(in));
+                    }
+                }
+                failures = 0;
+                coalesce = count >= BUSY_MESSAGES ? Math.min(MAX_COALESCE_MILLIS, Math.max(50, coalesce * 2)) : 0;
+                pause = coalesce;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                failures++;
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, 500L << Math.min(failures - 1, 6));
+                // Jitter, so clients that lost the server together do not all come back together
+                pause = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                if (e instanceof RetryException) pause = Math.max(pause, ((RetryException) e).retryAfterMillis);
+            }
+            if (pause > 0) {
+                try { Thread.sleep(pause); } catch (InterruptedException e) { return; }
+            }
+        }
+    }
+
+    private static String readUtf8(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+    }
+
+    private static final class RetryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMillis;
 
-        // Start a thread to poll for new messages
-        Thread poller = new Thread(() -> {
-            int since = 0;
+        RetryException(int status, long retryAfterMillis) {
+            super("HTTP " + status);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        try {
+            return Long.parseLong(response.headers().firstValue("Retry-After").orElse("0")) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void send(HttpClient client, HttpRequest request, int messages) {
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() == 429) {
+                System.out.println("Sending too fast; " + messages + " message(s) dropped, try again in "
+                        + Math.max(1, retryAfterMillis(response) / 1000) + "s");
+            } else if (response.statusCode() != 200) {
+                System.out.println("Failed to send message: HTTP " + response.statusCode());
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to send message: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Lines arriving within batchMillis of each other (e.g. pasted text) go out as one request,
+    // one message per line of the body
+    private static void sendBatched(Scanner scanner, HttpClient client, String sendUrl, long batchMillis) throws Exception {
+        LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>();
+        Thread sender = new Thread(() -> {
+            List<String> batch = new ArrayList<>();
             while (true) {
                 try {
-                    URL url = new URL("http://localhost:8081/messages?since=" + since);
-                    HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                    con.setRequestMethod("GET");
-                    BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-                    StringBuilder resp = new StringBuilder();
+                    batch.add(pending.take());
+                    long deadline = System.currentTimeMillis() + batchMillis;
                     String line;
-                    while ((line = in.readLine()) != null) resp.append(line);
-                    in.close();
-                    String json = resp.toString();
-                    // Parse messages and next index
-                    int idx1 = json.indexOf("[");
-                    int idx2 = json.indexOf("]");
-                    if (idx1 != -1 && idx2 != -1 && idx2 > idx1) {
-                        String arr = json.substring(idx1 + 1, idx2);
-                        if (!arr.trim().isEmpty()) {
-                            for (String msg : arr.split("\",\"")) {
-                                msg = msg.replaceAll("^\"|\"$", "").replace("\\\"", "\"");
-                                System.out.println(msg);
-                            }
-                        }
+                    long left;
+                    while (batch.size() < 1000 && (left = deadline - System.currentTimeMillis()) > 0
+                            && (line = pending.poll(left, TimeUnit.MILLISECONDS)) != null) {
+                        batch.add(line);
                     }
-                    int nextIdx = json.lastIndexOf("\"next\":");
-                    if (nextIdx != -1) {
-                        String nextVal = json.substring(nextIdx + 7).replaceAll("[^0-9]", "");
-                        if (!nextVal.isEmpty()) since = Integer.parseInt(nextVal);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                send(client, HttpRequest.newBuilder(URI.create(sendUrl))
+                        .header("Content-Type", "text/plain; charset=UTF-8")
+                        .POST(HttpRequest.BodyPublishers.ofString(String.join("\n", batch), StandardCharsets.UTF_8)).build(),
+                        batch.size());
+                batch.clear();
+            }
+        }, "chat-sender");
+        sender.setDaemon(true);
+        sender.start();
+        while (scanner.hasNextLine()) {
+            String msg = scanner.nextLine();
+            if (!msg.trim().isEmpty()) pending.add(msg);
+        }
+        // Input closed: let the last batch go out before exiting
+        while (!pending.isEmpty()) Thread.sleep(batchMillis);
+        Thread.sleep(batchMillis + 500);
+    }
+
+    // The WebSocket endpoint listens on its own port, which the server reports at /ws; null when it has none
+    private static String webSocketBase(String server) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create(server + "/ws")).build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (JsonReader json = new JsonReader(response.body())) {
+            if (response.statusCode() != 200) return null;
+            json.beginObject();
+            while (json.hasNext()) {
+                if (json.nextName().equals("port")) return "ws://" + URI.create(server).getHost() + ":" + json.nextLong();
+                json.skipValue();
+            }
+        }
+        return null;
+    }
+
+    // Sends and receives over the server's WebSocket endpoint instead of HTTP requests
+    private static void runWebSocket(Scanner scanner, String user, String webSocketBase, String roomParam) throws Exception {
+        URI uri = URI.create(webSocketBase + "/ws?" + roomParam + "&user=" + URLEncoder.encode(user, "UTF-8"));
+        WebSocket ws = HttpClient.newHttpClient().newWebSocketBuilder().buildAsync(uri, new WebSocket.Listener() {
+            private final StringBuilder frame = new StringBuilder();
+
+            @Override
+            public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+                frame.append(data);
+                if (last) {
+                    try {
+                        String line = messageLine(frame.toString());
+                        if (line != null) System.out.println(line);
+                    } catch (IOException e) {
+                        System.out.println("Unreadable frame: " + e.getMessage());
                     }
-                    Thread.sleep(1000);
-                } catch (Exception e) {
-                    // Ignore errors, retry
-                    try { Thread.sleep(2000); } catch (InterruptedException ignored) {}
+                    frame.setLength(0);
                 }
+                webSocket.request(1);
+                return null;
             }
-        });
-        poller.setDaemon(true);
-        poller.start();
 
-        // Main loop: send messages
+            @Override
+            public void onError(WebSocket webSocket, Throwable error) {
+                System.out.println("Connection lost: " + error.getMessage());
+            }
+        }).join();
         while (true) {
             String msg = scanner.nextLine();
             if (msg.trim().isEmpty()) continue;
-            try {
-                String urlStr = "http://localhost:8081/send?user=" + URLEncoder.encode(user, "UTF-8")
-                        + "&msg=" + URLEncoder.encode(msg, "UTF-8");
-                URL url = new URL(urlStr);
-                HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                con.setRequestMethod("POST");
-                con.setDoOutput(true);
-                con.getOutputStream().write(0); // Send empty body
-                con.getInputStream().close();
-            } catch (Exception e) {
-                System.out.println("Failed to send message: " + e.getMessage());
+            ws.sendText("send " + msg, true).join();
+        }
+    }
+
+    // "user: text" for a message frame, null for any other frame
+    static String messageLine(String frame) throws IOException {
+        try (JsonReader json = new JsonReader(new ByteArrayInputStream(frame.getBytes(StandardCharsets.UTF_8)))) {
+            String user = null;
+            String text = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                if (!json.nextName().equals("message")) {
+                    json.skipValue();
+                    continue;
+                }
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    if (name.equals("user")) user = json.nextString();
+                    else if (name.equals("text")) text = json.nextString();
+                    else json.skipValue();
+                }
+                json.endObject();
             }
+            json.endObject();
+            return text == null ? null : (user == null ? "" : user) + ": " + text;
         }
     }
 }
@@ -1,4 +1,5 @@
 package javaChat;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -6,6 +7,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 // Java HTTP Chat Server
@@ -13,40 +15,253 @@ import java.nio.charset.StandardCharsets;
 // Start the server, open the provided link in a browser, and chat in real time.
 
 public class ChatHttpServer {
-    private static final List<String> messages = new CopyOnWriteArrayList<>();
-    private static final Set<String> activeUsers = ConcurrentHashMap.newKeySet();
+    // Created in start(), after the configuration has been applied to the system properties
+    static Rooms rooms;
+    private static ServerExecutor executor;
+    private static WebSocketServer webSocket;
+    private static int webSocketPort = -1;
+    private static final Metrics metrics = new Metrics();
+    private static Cluster cluster;
+    // Sends are limited per user, per remote address and overall, counted in messages; polls of /messages
+    // and /users per address and overall. -Dchat.limit.<name>.perSecond=0 turns a limit off.
+    static RateLimiter sendPerUser;
+    static RateLimiter sendPerAddress;
+    static RateLimiter sendGlobal;
+    static RateLimiter pollPerAddress;
+    static RateLimiter pollGlobal;
+    // Messages per since= response, and the response size above which clients that accept gzip get it
+    static int maxMessages = 2000;
+    private static long gzipBytes = 8192;
 
+    // Configured by flags, -D properties, environment or a properties file (see Config); asks on the terminal
+    // only when none of them gives an address and there is a terminal to ask on
     public static void main(String[] args) throws Exception {
-        Scanner scanner = new Scanner(System.in);
-        System.out.print("Run server on (1) localhost or (2) network? [1/2]: ");
-        String choice = scanner.nextLine().trim();
-        InetSocketAddress address;
-        String link;
-        if ("2".equals(choice)) {
-            System.out.print("Enter IP address to bind (e.g., 192.168.1.100): ");
-            String ip = scanner.nextLine().trim();
-            System.out.print("Enter port number (e.g., 8081): ");
-            int port = Integer.parseInt(scanner.nextLine().trim());
-            address = new InetSocketAddress(ip, port);
-            link = "http://" + ip + ":" + port + "/";
-        } else {
-            address = new InetSocketAddress("localhost", 8081);
-            link = "http://localhost:8081/";
+        if (!Config.load(args)) return;
+        if (Boolean.getBoolean("chat.train")) {
+            TrainingRun.run();
+            System.exit(0);
         }
+        String host = System.getProperty("chat.bind", "localhost");
+        int port = Integer.getInteger("chat.port", 8081);
+        if (!Config.addressConfigured() && System.console() != null) {
+            Scanner scanner = new Scanner(System.in);
+            System.out.print("Run server on (1) localhost or (2) network? [1/2]: ");
+            String choice = scanner.nextLine().trim();
+            if ("2".equals(choice)) {
+                System.out.print("Enter IP address to bind (e.g., 192.168.1.100): ");
+                host = scanner.nextLine().trim();
+                System.out.print("Enter port number (e.g., 8081): ");
+                port = Integer.parseInt(scanner.nextLine().trim());
+            }
+        }
+        start(new InetSocketAddress(host, port));
+        long startedMillis = ProcessHandle.current().info().startInstant()
+                .map(instant -> System.currentTimeMillis() - instant.toEpochMilli()).orElse(-1L);
+        System.out.println("Chat server started at http://" + host + ":" + port + "/ (" + executor.strategy() + " executor"
+                + (startedMillis >= 0 ? ", ready " + startedMillis + " ms after launch)" : ")"));
+        if (webSocket != null) System.out.println("WebSocket endpoint on port " + webSocketPort);
+    }
+
+    // Recovers the journal, starts the WebSocket endpoint and the HTTP server, and returns the running server
+    static HttpServer start(InetSocketAddress address) throws IOException {
+        executor = ServerExecutor.fromSystemProperties();
+        rooms = Rooms.fromSystemProperties(executor);
+        sendPerUser = RateLimiter.fromSystemProperties("chat.limit.send.user", 5, 20, 100_000);
+        sendPerAddress = RateLimiter.fromSystemProperties("chat.limit.send.address", 20, 60, 100_000);
+        sendGlobal = RateLimiter.fromSystemProperties("chat.limit.send.global", 1000, 2000, 1);
+        pollPerAddress = RateLimiter.fromSystemProperties("chat.limit.poll.address", 20, 60, 100_000);
+        pollGlobal = RateLimiter.fromSystemProperties("chat.limit.poll.global", 10_000, 20_000, 1);
+        maxMessages = Math.max(1, Integer.getInteger("chat.messages.maxPerResponse", 2000));
+        gzipBytes = Long.getLong("chat.messages.gzipBytes", 8192);
+        cluster = Cluster.fromSystemProperties(rooms);
+        rooms.setCluster(cluster);
+        rooms.recover();
+        if (cluster != null) {
+            cluster.start();
+            System.out.println("Cluster " + cluster.role() + " on " + System.getProperty("chat.cluster.self"));
+        }
+        // WebSocket transport on its own port (HTTP port + 1 by default, negative to disable)
+        webSocketPort = Integer.getInteger("chat.ws.port", address.getPort() + 1);
+        if (webSocketPort >= 0) {
+            webSocket = new WebSocketServer(new InetSocketAddress(address.getAddress(), webSocketPort), rooms);
+            webSocket.start();
+        }
+        StreamHandler.startHeartbeat(Long.getLong("chat.stream.heartbeatSeconds", 15));
+        startExpiry(60);
+        // Small responses otherwise sit behind Nagle's algorithm until the client's delayed ACK (~40 ms per
+        // exchange on loopback); read by the JDK server when it is first created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(address, 0);
-        server.createContext("/", new PageHandler());
-        server.createContext("/send", new SendHandler());
-        server.createContext("/messages", new MessagesHandler());
-        server.createContext("/users", new UsersHandler());
-        server.setExecutor(Executors.newCachedThreadPool());
-        System.out.println("Chat server started at " + link);
+        route(server, "/", new PageHandler());
+        route(server, "/send", new SendHandler());
+        route(server, "/messages", new MessagesHandler());
+        route(server, "/users", new UsersHandler());
+        route(server, "/stream", new StreamHandler());
+        route(server, "/ws", new WebSocketInfoHandler());
+        route(server, "/search", new SearchHandler());
+        route(server, "/stats", new StatsHandler());
+        route(server, "/metrics", new MetricsHandler());
+        registerGauges();
+        // The socket is bound but nothing is accepted until start(), so clients wait in the backlog meanwhile
+        warmUp(Long.getLong("chat.warmupMillis", 100));
+        server.setExecutor(executor);
         server.start();
+        return server;
+    }
+
+    // Runs the response paths over every room's latest page (and a synthetic one, so a fresh install without
+    // history gets the same) until the budget is spent. The first requests after a restart then find the
+    // classes loaded and initialized and the hot loops compiled, instead of paying for both themselves.
+    private static void warmUp(long millis) throws IOException {
+        if (millis <= 0) return;
+        MessageLog scratch = new MessageLog(MAX_PAGE, 0, 0);
+        User user = User.of("warmup");
+        String[] texts = { "hello", "quote \" and \\ backslash", "tab\tnew\nline", "caf\u00e9 \u4f60\u597d \ud83d\ude00" };
+        for (int i = 0; i < MAX_PAGE; i++) scratch.append(Message.restore(user, (texts[i % texts.length] + " " + i).getBytes(StandardCharsets.UTF_8), i));
+        List<MessageLog> logs = new ArrayList<>();
+        logs.add(scratch);
+        for (Room room : rooms.all()) logs.add(room.log);
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        do {
+            for (MessageLog log : logs) {
+                Batch batch = new Batch();
+                long next = log.readRaw(Math.max(log.first(), log.next() - MAX_PAGE), log.next(), batch);
+                batch.jsonLength();
+                try (JsonWriter out = new JsonWriter(OutputStream.nullOutputStream())) {
+                    out.raw(MESSAGES_PREFIX);
+                    batch.writeJson(out);
+                }
+                Set<User> mentioned = batch.mentioned();
+                batch.binaryLength(mentioned);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 8192))) {
+                    batch.writeBinary(out, mentioned, next, log.first());
+                }
+                Message last = log.get(next - 1);
+                if (last != null) StreamHandler.encodeEvent(next - 1, last);
+            }
+            for (Room room : rooms.all()) room.presence.snapshotJson();
+            metrics.render();
+        } while (System.nanoTime() < deadline);
+    }
+
+    private static void route(HttpServer server, String path, HttpHandler handler) {
+        server.createContext(path, metrics.wrap(path, handler)).getFilters().add(executor.sheddingFilter());
+    }
+
+    private static void registerGauges() {
+        metrics.gauge("chat_messages", "Messages held in memory, all rooms", () -> {
+            long count = 0;
+            for (Room room : rooms.all()) count += room.log.next() - room.log.first();
+            return count;
+        });
+        metrics.counter("chat_messages_appended_total", "Sequence numbers handed out, all rooms", () -> {
+            long count = 0;
+            for (Room room : rooms.all()) count += room.log.next();
+            return count;
+        });
+        metrics.gauge("chat_active_users", "Users present, summed over rooms", () -> {
+            long count = 0;
+            for (Room room : rooms.all()) count += room.presence.size();
+            return count;
+        });
+        metrics.gauge("chat_parked_waiters", "Long-poll requests waiting for messages", () -> {
+            long count = 0;
+            for (Room room : rooms.all()) count += room.longPoll.parked();
+            return count;
+        });
+        metrics.gauge("chat_stream_subscribers", "Open SSE and WebSocket connections", () -> {
+            long count = 0;
+            for (Room room : rooms.all()) count += room.stream.size() + room.sockets.size();
+            return count;
+        });
+        metrics.gauge("chat_rooms", "Rooms in use", () -> rooms.all().size());
+        metrics.counter("chat_history_cold_loads_total", "Compressed history segments decompressed for a read", MessageLog.coldLoads::sum);
+        metrics.gauge("chat_search_terms", "Distinct words in the search indexes, summed over rooms", () -> {
+            long count = 0;
+            for (Room room : rooms.all()) count += room.search.terms();
+            return count;
+        });
+        if (cluster != null) metrics.gauge("chat_cluster_peers", "Connected followers (leader) or 1 while connected to the leader (follower)", cluster::peers);
+        metrics.gauge("chat_executor_threads", "Threads running requests", executor::threads);
+        metrics.gauge("chat_executor_in_flight", "Requests being handled", executor::inFlight);
+        metrics.gauge("chat_executor_queue_depth", "Requests waiting for a thread", executor::queueDepth);
+        metrics.counter("chat_executor_rejected_total", "Requests answered with 503", executor::rejected);
+        for (RateLimiter limiter : new RateLimiter[] { sendPerUser, sendPerAddress, sendGlobal, pollPerAddress, pollGlobal }) {
+            String name = "chat_" + limiter.name().substring("chat.".length()).replace('.', '_') + "_limited_total";
+            metrics.counter(name, "Requests refused by " + limiter.name(), limiter::limited);
+        }
+    }
+
+    // Resolves the room=<name> parameter (default room when absent); answers 400 and returns null if it is invalid
+    // Only sends create rooms; reads of a room that does not exist get the empty Rooms.find stand-in
+    private static Room room(HttpExchange exchange, Map<String, String> params, boolean create) throws IOException {
+        try {
+            return create ? rooms.get(params.get("room")) : rooms.find(params.get("room"));
+        } catch (IllegalArgumentException e) {
+            byte[] response = e.getMessage().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(400, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+            return null;
+        }
+    }
+
+    // Appends apply retention only when they start a new segment; this ages out quiet rooms too
+    private static void startExpiry(long seconds) {
+        ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-retention");
+            t.setDaemon(true);
+            return t;
+        });
+        expiry.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            for (Room room : rooms.all()) room.log.expire(now);
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    // Charges the send limits; returns the milliseconds to wait, or 0 if the messages may be posted
+    static long limitSend(String user, String address, int messages) {
+        // Global tokens last: a caller refused by its own limits must not drain the shared bucket. Tokens taken
+        // before a refusal are given back, so one user over its limit does not spend its address's budget.
+        long wait = sendPerAddress.acquire(address, messages);
+        if (wait > 0) return wait;
+        wait = sendPerUser.acquire(user, messages);
+        if (wait == 0) {
+            wait = sendGlobal.acquire("", messages);
+            if (wait > 0) sendPerUser.refund(user, messages);
+        }
+        if (wait > 0) sendPerAddress.refund(address, messages);
+        return wait;
     }
 
+    // Answers 429 with Retry-After and returns false when wait is non-zero
+    private static boolean admit(HttpExchange exchange, long wait) throws IOException {
+        if (wait == 0) return true;
+        exchange.getResponseHeaders().add("Retry-After", String.valueOf((wait + 999) / 1000));
+        exchange.sendResponseHeaders(429, -1);
+        exchange.close();
+        return false;
+    }
+
+    private static String address(HttpExchange exchange) {
+        return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private static boolean admitPoll(HttpExchange exchange) throws IOException {
+        String address = address(exchange);
+        long wait = pollPerAddress.acquire(address, 1);
+        if (wait == 0) {
+            wait = pollGlobal.acquire("", 1);
+            if (wait > 0) pollPerAddress.refund(address, 1);
+        }
+        return admit(exchange, wait);
+    }
+
+    // The page is rendered once: UTF-8, gzip and deflate variants are built at class load and each
+    // request only picks one by Accept-Encoding. Browsers revalidate with If-None-Match and get 304.
     static class PageHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String html = """
+        private static final String HTML = """
             <!DOCTYPE html>
             <html lang="en">
             <head>
@@ -213,12 +428,10 @@ public class ChatHttpServer {
                         flex: 1 1 auto;
                         border: none;
                         overflow-y: auto;
+                        overflow-anchor: none;
                         background: var(--main-bg);
                         padding: 24px 16px 8px 16px;
                         box-sizing: border-box;
-                        display: flex;
-                        flex-direction: column;
-                        gap: 10px;
                         scrollbar-width: thin;
                         scrollbar-color: var(--mine-bg) var(--main-bg);
                     }
@@ -229,6 +442,12 @@ public class ChatHttpServer {
                         background: var(--mine-bg);
                         border-radius: 4px;
                     }
+                    .block {
+                        display: flex;
+                        flex-direction: column;
+                        gap: 10px;
+                        padding-bottom: 10px;
+                    }
                     .bubble-row {
                         display: flex;
                         width: 100%%;
@@ -367,6 +586,16 @@ public class ChatHttpServer {
                         letter-spacing: 1px;
                         margin-bottom: 12px;
                     }
+                    #room {
+                        border-radius: 8px;
+                        border: none;
+                        padding: 10px;
+                        margin-bottom: 18px;
+                        background: var(--theirs-bg);
+                        color: var(--theirs-fg);
+                        font-size: 1em;
+                        font-family: inherit;
+                    }
                     #userlist {
                         list-style: none;
                         padding: 0;
@@ -458,6 +687,8 @@ public class ChatHttpServer {
                         </div>
                     </div>
                     <div id="sidebar">
+                        <h3>Room</h3>
+                        <input id="room" placeholder="main" autocomplete="off" />
                         <h3>Active Users</h3>
                         <ul id="userlist"></ul>
                     </div>
@@ -480,6 +711,9 @@ public class ChatHttpServer {
                     let sendBtn = document.getElementById('send');
                     let voiceBtn = document.getElementById('voice');
                     let userList = document.getElementById('userlist');
+                    let roomInput = document.getElementById('room');
+                    let room = localStorage.getItem('chat_room') || 'main';
+                    roomInput.value = room;
                     let myUser = localStorage.getItem('chat_user') || "";
                     if (myUser) userInput.value = myUser;
                     userInput.addEventListener('change', function() {
@@ -491,51 +725,330 @@ public class ChatHttpServer {
                             return {'&':'&amp;','<':'&lt;','>':'&gt;','"':'&quot;',"'":'&#39;'}[m];
                         });
                     }
-                    function addMessageBubble(msg) {
+                    // msg is {user, time, text}
+                    function messageRow(msg) {
                         let myName = userInput.value.trim() || "anon";
-                        let isMine = msg.startsWith(myName + ": ");
+                        let isMine = msg.user === myName;
                         let row = document.createElement('div');
                         row.className = 'bubble-row';
                         let bubble = document.createElement('div');
                         bubble.className = 'bubble ' + (isMine ? 'mine' : 'theirs');
-                        let content = msg;
-                        if (isMine) {
-                            content = msg.substring((myName + ": ").length);
-                        } else {
-                            let idx = msg.indexOf(": ");
-                            if (idx > 0) {
-                                let uname = msg.substring(0, idx);
-                                let text = msg.substring(idx + 2);
-                                let unameDiv = document.createElement('div');
-                                unameDiv.className = 'username';
-                                unameDiv.textContent = uname;
-                                bubble.appendChild(unameDiv);
-                                content = text;
-                            }
+                        if (!isMine && msg.user) {
+                            let unameDiv = document.createElement('div');
+                            unameDiv.className = 'username';
+                            unameDiv.textContent = msg.user;
+                            bubble.appendChild(unameDiv);
                         }
                         let textDiv = document.createElement('div');
-                        textDiv.textContent = content;
+                        textDiv.textContent = msg.text;
                         bubble.appendChild(textDiv);
                         row.appendChild(bubble);
-                        chatDiv.appendChild(row);
-                        chatDiv.scrollTop = chatDiv.scrollHeight;
+                        return row;
+                    }
+                    // The message list is virtualized: every message stays in "messages", but only the blocks of
+                    // BLOCK rows around the viewport are in the DOM, between two spacers that stand in for the rest
+                    // at their measured (or, until first shown, estimated) heights. Arriving messages and older
+                    // pages are queued and applied once per animation frame, followed by at most one scroll.
+                    const BLOCK = 50;
+                    let messages = [];
+                    let first = 0;            // position of messages[0]; block b holds positions b*BLOCK to b*BLOCK+BLOCK-1
+                    let heights = new Map();  // block -> measured height
+                    let shown = new Map();    // block -> its element, for blocks in the DOM
+                    let rowHeight = 60;       // running average, for blocks never shown
+                    let newer = [];
+                    let older = [];
+                    let stick = true;         // keep the newest message in view
+                    let frameRequested = false;
+                    let topSpacer = document.createElement('div');
+                    let bottomSpacer = document.createElement('div');
+                    chatDiv.append(topSpacer, bottomSpacer);
+                    function addMessage(msg) {
+                        newer.push(msg);
+                        requestRender();
+                    }
+                    function addMessages(list) {
+                        list.forEach(m => newer.push(m));
+                        requestRender();
+                    }
+                    function prependMessages(list) {
+                        older.push(list);
+                        requestRender();
+                    }
+                    function resetMessages() {
+                        shown.forEach(el => el.remove());
+                        shown.clear();
+                        heights.clear();
+                        messages = [];
+                        first = 0;
+                        newer = [];
+                        older = [];
+                        stick = true;
+                        requestRender();
+                    }
+                    function requestRender() {
+                        if (frameRequested) return;
+                        frameRequested = true;
+                        requestAnimationFrame(render);
+                    }
+                    function blockRange(b) {
+                        return [Math.max(first, b * BLOCK), Math.min(first + messages.length, b * BLOCK + BLOCK)];
+                    }
+                    function blockHeight(b) {
+                        let h = heights.get(b);
+                        if (h !== undefined) return h;
+                        let [from, to] = blockRange(b);
+                        return (to - from) * rowHeight;
+                    }
+                    function buildBlock(b) {
+                        let el = document.createElement('div');
+                        el.className = 'block';
+                        let [from, to] = blockRange(b);
+                        for (let i = from; i < to; i++) el.appendChild(messageRow(messages[i - first]));
+                        return el;
+                    }
+                    // A block whose rows changed is rebuilt (and measured) the next time it is shown
+                    function invalidate(b) {
+                        heights.delete(b);
+                        let el = shown.get(b);
+                        if (el) { el.remove(); shown.delete(b); }
+                    }
+                    function render() {
+                        frameRequested = false;
+                        let pad = parseFloat(getComputedStyle(chatDiv).paddingTop) || 0;
+                        // Where the view is before anything changes: a block, and how far into it
+                        let anchor = null;
+                        let anchorOffset = 0;
+                        if (!stick && messages.length) {
+                            let y = chatDiv.scrollTop - pad;
+                            let top = 0;
+                            let end = Math.floor((first + messages.length - 1) / BLOCK);
+                            for (let b = Math.floor(first / BLOCK); b <= end; b++) {
+                                let h = blockHeight(b);
+                                if (top + h > y || b === end) { anchor = b; anchorOffset = y - top; break; }
+                                top += h;
+                            }
+                        }
+                        // Only a partly filled block at either end gains rows; new ones fill blocks of their own
+                        if (newer.length) {
+                            if ((first + messages.length) % BLOCK !== 0) invalidate(Math.floor((first + messages.length) / BLOCK));
+                            newer.forEach(m => messages.push(m));
+                            newer = [];
+                        }
+                        older.forEach(list => {
+                            if (!list.length) return;
+                            if (first % BLOCK !== 0) invalidate(Math.floor(first / BLOCK));
+                            messages = list.concat(messages);
+                            first -= list.length;
+                        });
+                        older = [];
+                        if (!messages.length) {
+                            topSpacer.style.height = bottomSpacer.style.height = '0px';
+                            return;
+                        }
+                        let firstBlock = Math.floor(first / BLOCK);
+                        let lastBlock = Math.floor((first + messages.length - 1) / BLOCK);
+                        let total = 0;
+                        let anchorTop = 0;
+                        for (let b = firstBlock; b <= lastBlock; b++) {
+                            if (b === anchor) anchorTop = total;
+                            total += blockHeight(b);
+                        }
+                        // The viewport, with a screen of rows either side so short scrolls need no new rows
+                        let view = chatDiv.clientHeight;
+                        let viewTop = anchor === null ? total - view : anchorTop + anchorOffset;
+                        let lo = viewTop - view;
+                        let hi = viewTop + 2 * view;
+                        let from = lastBlock;
+                        let to = firstBlock;
+                        let top = 0;
+                        for (let b = firstBlock; b <= lastBlock; b++) {
+                            let h = blockHeight(b);
+                            if (top + h >= lo && top <= hi) { from = Math.min(from, b); to = Math.max(to, b); }
+                            top += h;
+                        }
+                        if (from > to) from = to = lastBlock;
+                        shown.forEach((el, b) => {
+                            if (b < from || b > to) { el.remove(); shown.delete(b); }
+                        });
+                        let previous = topSpacer;
+                        for (let b = from; b <= to; b++) {
+                            let el = shown.get(b);
+                            if (!el) {
+                                el = buildBlock(b);
+                                shown.set(b, el);
+                                chatDiv.insertBefore(el, previous.nextSibling);
+                            }
+                            previous = el;
+                        }
+                        // One layout for all the measurements
+                        shown.forEach((el, b) => {
+                            let h = el.offsetHeight;
+                            let [start, end] = blockRange(b);
+                            if (!heights.has(b)) rowHeight = rowHeight * 0.8 + h / (end - start) * 0.2;
+                            heights.set(b, h);
+                        });
+                        // Spacers and shown blocks now add up to exactly the heights used below
+                        topSpacer.style.height = sumHeights(firstBlock, from) + 'px';
+                        bottomSpacer.style.height = sumHeights(to + 1, lastBlock + 1) + 'px';
+                        if (anchor === null) chatDiv.scrollTop = chatDiv.scrollHeight;
+                        else chatDiv.scrollTop = pad + sumHeights(firstBlock, anchor) + anchorOffset;
+                    }
+                    function sumHeights(from, to) {
+                        let sum = 0;
+                        for (let b = from; b < to; b++) sum += blockHeight(b);
+                        return sum;
+                    }
+                    // History is fetched a page at a time: the latest page on connect, older pages when the
+                    // chat is scrolled to the top. "before" is the cursor of the next older page, null at the start.
+                    let before = null;
+                    let loadingOlder = false;
+                    function loadLatest(gen) {
+                        return fetch('/messages?' + roomParam() + '&before=' + Number.MAX_SAFE_INTEGER + '&limit=50')
+                            .then(r => r.ok ? r.json() : Promise.reject())
+                            .then(data => {
+                                if (gen !== generation) return;
+                                addMessages(data.messages);
+                                since = data.next;
+                                before = data.more ? data.before : null;
+                            });
+                    }
+                    function loadOlder() {
+                        if (before === null || loadingOlder) return;
+                        let gen = generation;
+                        loadingOlder = true;
+                        fetch('/messages?' + roomParam() + '&before=' + before + '&limit=50')
+                            .then(r => r.ok ? r.json() : Promise.reject())
+                            .then(data => {
+                                if (gen !== generation) return;
+                                // The render keeps the visible messages in place while these go in above them
+                                prependMessages(data.messages);
+                                before = data.more ? data.before : null;
+                            })
+                            .catch(() => {})
+                            .finally(() => { loadingOlder = false; });
+                    }
+                    chatDiv.addEventListener('scroll', function() {
+                        stick = chatDiv.scrollHeight - chatDiv.scrollTop - chatDiv.clientHeight < 40;
+                        requestRender();
+                        if (chatDiv.scrollTop < 50) loadOlder();
+                    });
+                    // Rows rewrap at a new width: heights measured for blocks out of view no longer hold
+                    window.addEventListener('resize', function() {
+                        heights.forEach((h, b) => { if (!shown.has(b)) heights.delete(b); });
+                        requestRender();
+                    });
+                    // Preferred transport is a WebSocket (send, receive and presence on one connection),
+                    // then Server-Sent Events, then long-polling. Switching rooms bumps "generation",
+                    // which retires every connection and poll loop opened for the previous room.
+                    let socket = null;
+                    let socketUser = null;
+                    let source = null;
+                    let generation = 0;
+                    function roomParam() {
+                        return 'room=' + encodeURIComponent(room);
                     }
-                    function poll() {
-                        fetch('/messages?since=' + since)
+                    function connect() {
+                        let gen = generation;
+                        loadLatest(gen).catch(() => {}).then(() => connectTransport(gen));
+                    }
+                    function connectTransport(gen) {
+                        if (gen !== generation) return;
+                        if (!window.WebSocket) { connectStream(gen); return; }
+                        fetch('/ws')
+                            .then(r => r.ok ? r.json() : Promise.reject())
+                            .then(info => openSocket(info.port, gen))
+                            .catch(() => connectStream(gen));
+                    }
+                    function openSocket(port, gen) {
+                        if (gen !== generation) return;
+                        let user = userInput.value.trim() || "anon";
+                        let ws = new WebSocket('ws://' + location.hostname + ':' + port + '/ws?' + roomParam() + '&since=' + since + '&user=' + encodeURIComponent(user));
+                        let opened = false;
+                        ws.onopen = function() {
+                            if (gen !== generation) { ws.close(); return; }
+                            opened = true; socket = ws; socketUser = user;
+                        };
+                        // Any frame keeps this user present; send one now and then while idle
+                        let heartbeat = setInterval(() => { if (socket === ws) ws.send('user ' + socketUser); }, 20000);
+                        ws.onmessage = function(e) {
+                            if (gen !== generation) return;
+                            let data = JSON.parse(e.data);
+                            if (data.type === 'message') {
+                                addMessage(data.message);
+                                since = data.next;
+                            } else if (data.type === 'users') {
+                                applyUsers(data);
+                            }
+                        };
+                        ws.onclose = function() {
+                            clearInterval(heartbeat);
+                            if (socket === ws) socket = null;
+                            if (gen !== generation) return;
+                            // Reconnect if the socket had worked; otherwise the port is unreachable, so fall back
+                            if (opened) setTimeout(() => openSocket(port, gen), 1000); else connectStream(gen);
+                        };
+                    }
+                    // Server push via Server-Sent Events; falls back to long-polling if the stream cannot be kept open
+                    function connectStream(gen) {
+                        if (gen !== generation) return;
+                        if (!window.EventSource) { poll(gen); return; }
+                        let es = new EventSource('/stream?' + roomParam() + '&since=' + since);
+                        source = es;
+                        es.onmessage = function(e) {
+                            addMessage(JSON.parse(e.data));
+                            since = Number(e.lastEventId);
+                        };
+                        es.onerror = function() {
+                            // The browser reconnects on its own (sending Last-Event-ID) unless the stream was refused
+                            if (es.readyState === EventSource.CLOSED && source === es) { source = null; poll(gen); }
+                        };
+                    }
+                    // Long-poll: the server holds the request until new messages arrive or the wait expires
+                    function poll(gen) {
+                        if (gen !== generation) return;
+                        fetch('/messages?' + roomParam() + '&since=' + since + '&wait=25000')
                             .then(r => r.json())
                             .then(data => {
-                                data.messages.forEach(m => addMessageBubble(m));
+                                if (gen !== generation) return;
+                                addMessages(data.messages);
                                 since = data.next;
+                                poll(gen);
                             })
-                            .catch(()=>{});
+                            .catch(() => setTimeout(() => poll(gen), 2000));
+                    }
+                    function switchRoom(name) {
+                        room = name || 'main';
+                        localStorage.setItem('chat_room', room);
+                        generation++;
+                        if (socket) { socket.close(); socket = null; }
+                        if (source) { source.close(); source = null; }
+                        since = 0;
+                        before = null;
+                        resetMessages();
+                        usersVersion = null;
+                        applyUsers({users: []});
+                        connect();
+                        updateUser();
+                        pollUsers();
                     }
-                    setInterval(poll, 1000);
+                    roomInput.addEventListener('change', function() {
+                        switchRoom(roomInput.value.trim());
+                    });
+                    connect();
                     sendBtn.onclick = function() {
                         let user = userInput.value.trim() || "anon";
                         let msg = msgInput.value.trim();
                         if (!msg) return;
-                        fetch('/send?user=' + encodeURIComponent(user) + '&msg=' + encodeURIComponent(msg), {method:'POST'})
-                            .then(()=>{ msgInput.value=''; updateUser(); });
+                        // Sending brings the conversation back to its newest message
+                        stick = true;
+                        if (socket) {
+                            if (socketUser !== user) { socket.send('user ' + user); socketUser = user; }
+                            socket.send('send ' + msg);
+                            msgInput.value = '';
+                            return;
+                        }
+                        fetch('/send?' + roomParam() + '&user=' + encodeURIComponent(user) + '&msg=' + encodeURIComponent(msg), {method:'POST'})
+                            .then(r => { if (r.ok) { msgInput.value=''; updateUser(); } });
                     };
                     msgInput.addEventListener('keydown', function(e) {
                         if (e.key === 'Enter') sendBtn.onclick();
@@ -565,19 +1078,50 @@ public class ChatHttpServer {
                     // Active users
                     function updateUser() {
                         let user = userInput.value.trim() || "anon";
-                        fetch('/users?user=' + encodeURIComponent(user), {method:'POST'});
+                        if (socket) {
+                            socket.send('user ' + user);
+                            socketUser = user;
+                            return;
+                        }
+                        fetch('/users?' + roomParam() + '&user=' + encodeURIComponent(user), {method:'POST'});
+                    }
+                    // The server sends either a full list or the joins and leaves since usersVersion; only the
+                    // entries that changed are touched
+                    let users = new Map();
+                    let usersVersion = null;
+                    function applyUsers(data) {
+                        if (data.users) {
+                            let current = new Set(data.users);
+                            users.forEach((li, u) => { if (!current.has(u)) removeUser(u); });
+                            data.users.forEach(addUser);
+                        }
+                        (data.joined || []).forEach(addUser);
+                        (data.left || []).forEach(removeUser);
+                        if (data.version !== undefined) usersVersion = data.version;
+                    }
+                    function addUser(u) {
+                        if (users.has(u)) return;
+                        let li = document.createElement('li');
+                        li.textContent = u;
+                        userList.appendChild(li);
+                        users.set(u, li);
+                    }
+                    function removeUser(u) {
+                        let li = users.get(u);
+                        if (!li) return;
+                        li.remove();
+                        users.delete(u);
                     }
                     function pollUsers() {
-                        fetch('/users')
-                            .then(r => r.json())
-                            .then(data => {
-                                userList.innerHTML = "";
-                                data.users.forEach(u => {
-                                    let li = document.createElement('li');
-                                    li.textContent = u;
-                                    userList.appendChild(li);
-                                });
-                            });
+                        // Over a WebSocket the user list is pushed
+                        if (socket) return;
+                        let user = userInput.value.trim() || "anon";
+                        let gen = generation;
+                        // The version is also the validator: nothing changed is answered 304 without a body
+                        let headers = usersVersion === null ? {} : {'If-None-Match': '"' + usersVersion + '"'};
+                        fetch('/users?' + roomParam() + '&user=' + encodeURIComponent(user) + (usersVersion === null ? '' : '&since=' + usersVersion), {headers: headers})
+                            .then(r => r.status === 304 ? null : r.json())
+                            .then(data => { if (data && gen === generation) applyUsers(data); });
                     }
                     setInterval(pollUsers, 2000);
                     window.onload = function() {
@@ -607,15 +1151,94 @@ public class ChatHttpServer {
             </body>
             </html>
             """;
-            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
-            exchange.sendResponseHeaders(200, html.getBytes().length);
+        private static final Map<String, Variant> VARIANTS = render(HTML.getBytes(StandardCharsets.UTF_8));
+
+        private static final class Variant {
+            final byte[] body;
+            final String etag;
+            final String encoding;
+
+            Variant(byte[] body, String etag, String encoding) {
+                this.body = body;
+                this.etag = etag;
+                this.encoding = encoding;
+            }
+        }
+
+        private static Map<String, Variant> render(byte[] page) {
+            String hash;
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+            ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+            try {
+                byte[] digest = java.security.MessageDigest.getInstance("SHA-256").digest(page);
+                hash = HexFormat.of().formatHex(digest, 0, 12);
+                try (OutputStream out = new java.util.zip.GZIPOutputStream(gzip)) { out.write(page); }
+                try (OutputStream out = new java.util.zip.DeflaterOutputStream(deflate)) { out.write(page); }
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot render chat page", e);
+            }
+            // Strong validators differ per encoding because the bytes differ
+            Map<String, Variant> variants = new HashMap<>();
+            variants.put("identity", new Variant(page, "\"" + hash + "\"", null));
+            variants.put("gzip", new Variant(gzip.toByteArray(), "\"" + hash + "-gzip\"", "gzip"));
+            variants.put("deflate", new Variant(deflate.toByteArray(), "\"" + hash + "-deflate\"", "deflate"));
+            return variants;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Variant variant = VARIANTS.get(negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding")));
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Content-Type", "text/html; charset=UTF-8");
+            headers.add("ETag", variant.etag);
+            headers.add("Cache-Control", "no-cache");
+            headers.add("Vary", "Accept-Encoding");
+            if (variant.encoding != null) headers.add("Content-Encoding", variant.encoding);
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && (ifNoneMatch.contains(variant.etag) || ifNoneMatch.trim().equals("*"))) {
+                exchange.getRequestBody().close();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            if (method.equalsIgnoreCase("HEAD")) {
+                headers.add("Content-Length", String.valueOf(variant.body.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, variant.body.length);
             OutputStream os = exchange.getResponseBody();
-            os.write(html.getBytes());
+            os.write(variant.body);
             os.close();
         }
+
+        // Picks gzip, then deflate, then identity, skipping codings the client refused with q=0
+        private static String negotiate(String acceptEncoding) {
+            if (acceptEncoding == null) return "identity";
+            boolean gzip = false;
+            boolean deflate = false;
+            for (String part : acceptEncoding.split(",")) {
+                String[] fields = part.trim().split(";");
+                String coding = fields[0].trim().toLowerCase(Locale.ROOT);
+                boolean refused = fields.length > 1 && fields[1].trim().matches("q=0(\\.0*)?");
+                if (coding.equals("gzip") || coding.equals("*")) gzip |= !refused;
+                if (coding.equals("deflate")) deflate |= !refused;
+            }
+            return gzip ? "gzip" : deflate ? "deflate" : "identity";
+        }
     }
 
+    // Either one message in the query string (?user=..&msg=..), or, without msg, a batch in the body:
+    // a JSON array of strings when Content-Type is application/json, otherwise one message per line.
+    // A batch is appended to the log in one operation.
     static class SendHandler implements HttpHandler {
+        private static final int MAX_BODY_BYTES = 1 << 20;
+        private static final int MAX_BATCH = 1000;
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
@@ -623,11 +1246,37 @@ public class ChatHttpServer {
                 return;
             }
             Map<String, String> params = queryToMap(exchange.getRequestURI().getQuery());
+            Room found = room(exchange, params, false);
+            if (found == null) return;
             String user = params.getOrDefault("user", "anon");
-            String msg = params.getOrDefault("msg", "");
-            if (!msg.isEmpty()) {
-                messages.add(user + ": " + msg);
-                activeUsers.add(user);
+            if (params.containsKey("msg")) {
+                String msg = params.get("msg");
+                if (!admit(exchange, limitSend(user, address(exchange), 1))) return;
+                Room room = create(exchange, params, found, !msg.isEmpty());
+                if (room == null || !post(exchange, () -> room.post(user, msg))) return;
+            } else {
+                byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+                if (body.length > MAX_BODY_BYTES) {
+                    // The rest of the body is never read, so the connection cannot carry another request
+                    exchange.getResponseHeaders().add("Connection", "close");
+                    exchange.sendResponseHeaders(413, -1);
+                    exchange.close();
+                    return;
+                }
+                List<String> batch;
+                try {
+                    batch = parseBatch(new String(body, StandardCharsets.UTF_8), exchange.getRequestHeaders().getFirst("Content-Type"));
+                } catch (IllegalArgumentException e) {
+                    byte[] response = e.getMessage().getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(400, response.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(response);
+                    os.close();
+                    return;
+                }
+                if (!admit(exchange, limitSend(user, address(exchange), batch.size()))) return;
+                Room room = create(exchange, params, found, batch.stream().anyMatch(text -> !text.isEmpty()));
+                if (room == null || !post(exchange, () -> room.postAll(user, batch))) return;
             }
             String response = "OK";
             exchange.sendResponseHeaders(200, response.length());
@@ -635,65 +1284,518 @@ public class ChatHttpServer {
             os.write(response.getBytes());
             os.close();
         }
+
+        private interface Post {
+            void run() throws IOException;
+        }
+
+        // Only a send that passed the limits and validation and carries some text creates its room, so refused,
+        // oversized or empty sends leave nothing behind
+        private static Room create(HttpExchange exchange, Map<String, String> params, Room found, boolean hasText) throws IOException {
+            return found.vacant() && hasText ? room(exchange, params, true) : found;
+        }
+
+        // A follower that cannot reach the cluster leader answers 503
+        private static boolean post(HttpExchange exchange, Post post) throws IOException {
+            try {
+                post.run();
+                return true;
+            } catch (IOException e) {
+                byte[] response = e.getMessage().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(503, response.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+                return false;
+            }
+        }
+
+        static List<String> parseBatch(String body, String contentType) {
+            List<String> batch;
+            if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("application/json")) {
+                batch = Json.parseStringArray(body);
+            } else {
+                batch = new ArrayList<>();
+                for (String line : body.split("\r?\n")) {
+                    // Older clients send a single NUL byte as a placeholder body
+                    if (!line.isEmpty() && !line.equals("\0")) batch.add(line);
+                }
+            }
+            if (batch.size() > MAX_BATCH) throw new IllegalArgumentException("At most " + MAX_BATCH + " messages per request");
+            return batch;
+        }
     }
 
     static class MessagesHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            if (!admitPoll(exchange)) return;
             Map<String, String> params = queryToMap(exchange.getRequestURI().getQuery());
-            int since = 0;
-            try { since = Integer.parseInt(params.getOrDefault("since", "0")); } catch (Exception ignored) {}
-            List<String> newMessages = messages.subList(Math.min(since, messages.size()), messages.size());
-            StringBuilder json = new StringBuilder("[");
-            for (int i = 0; i < newMessages.size(); i++) {
-                if (i > 0) json.append(",");
-                json.append("\"").append(newMessages.get(i).replace("\"", "\\\"")).append("\"");
+            Room room = room(exchange, params, false);
+            if (room == null) return;
+            long since = 0;
+            long wait = 0;
+            try { since = Long.parseLong(params.getOrDefault("since", "0")); } catch (Exception ignored) {}
+            try { wait = Long.parseLong(params.getOrDefault("wait", "0")); } catch (Exception ignored) {}
+            room.userSeen(params.getOrDefault("user", ""));
+            // A plain poll from a client that already has this state of the log costs one 304
+            if (wait <= 0 && notModified(exchange, messagesTag(room.log.first(), room.log.next()))) return;
+            if (params.containsKey("before")) {
+                // Scrollback: the page of up to "limit" messages just before "before", oldest first
+                long before = Long.MAX_VALUE;
+                int limit = 50;
+                try { before = Long.parseLong(params.get("before")); } catch (Exception ignored) {}
+                try { limit = Math.max(1, Math.min(MAX_PAGE, Integer.parseInt(params.getOrDefault("limit", "50")))); } catch (Exception ignored) {}
+                writePage(exchange, room.log, before, limit);
+            } else if (wait > 0) {
+                // Long-poll: the exchange is answered by LongPoll once there is something newer than "since"
+                room.longPoll.park(exchange, since, wait);
+            } else {
+                writeMessages(exchange, room.log, since);
             }
-            json.append("]");
-            String response = "{\"messages\":" + json + ",\"next\":" + messages.size() + "}";
-            exchange.getResponseHeaders().add("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+        }
+    }
+
+    private static final byte[] MESSAGES_PREFIX = "{\"messages\":[".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_PAGE = 500;
+
+    // The messages of one response, referenced where the log stores them: heap arrays, or off-heap chunks.
+    // Sizes are known before anything is written, so responses keep a Content-Length.
+    private static final class Batch implements MessageLog.RawVisitor {
+        long first = -1;
+        int count;
+        User[] users = new User[16];
+        long[] times = new long[16];
+        // byte[] or ByteBuffer; offsets only matter for the latter
+        Object[] texts = new Object[16];
+        int[] offsets = new int[16];
+        int[] lengths = new int[16];
+        int[] jsonLengths = new int[16];
+
+        @Override
+        public void visit(long seq, User user, long time, byte[] text, int textJsonLength) {
+            add(seq, user, time, text, 0, text.length, textJsonLength);
+        }
+
+        @Override
+        public void visit(long seq, User user, long time, ByteBuffer chunk, int offset, int length, int textJsonLength) {
+            add(seq, user, time, chunk, offset, length, textJsonLength);
+        }
+
+        private void add(long seq, User user, long time, Object text, int offset, int length, int textJsonLength) {
+            if (count == 0) first = seq;
+            if (count == users.length) {
+                int size = count * 2;
+                users = Arrays.copyOf(users, size);
+                times = Arrays.copyOf(times, size);
+                texts = Arrays.copyOf(texts, size);
+                offsets = Arrays.copyOf(offsets, size);
+                lengths = Arrays.copyOf(lengths, size);
+                jsonLengths = Arrays.copyOf(jsonLengths, size);
+            }
+            users[count] = user;
+            times[count] = time;
+            texts[count] = text;
+            offsets[count] = offset;
+            lengths[count] = length;
+            jsonLengths[count] = textJsonLength;
+            count++;
+        }
+
+        long jsonLength() {
+            long length = Math.max(0, count - 1);
+            for (int i = 0; i < count; i++) length += Message.jsonLength(users[i], times[i], jsonLengths[i]);
+            return length;
+        }
+
+        void writeJson(JsonWriter out) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (i > 0) out.raw(',');
+                out.raw(users[i].jsonPrefix).number(times[i]).raw(Message.TEXT_KEY);
+                if (texts[i] instanceof byte[]) out.string((byte[]) texts[i], offsets[i], lengths[i], jsonLengths[i]);
+                else out.string((ByteBuffer) texts[i], offsets[i], lengths[i], jsonLengths[i]);
+                out.raw('}');
+            }
+        }
+
+        // Binary format: three big-endian longs, then unsigned LEB128 varints and raw UTF-8
+        //   long first (sequence number of the first message), long next, long oldest (first one still held)
+        //   varint users, then per user: varint id, varint length, name
+        //   varint messages, then per message: varint user id, zigzag varint time minus the previous message's
+        //   time (0 before the first), varint length, text
+        void writeBinary(HttpExchange exchange, long next, long oldest) throws IOException {
+            Set<User> mentioned = mentioned();
+            try (DataOutputStream out = new DataOutputStream(new JsonWriter(responseBody(exchange, "application/octet-stream", binaryLength(mentioned))))) {
+                writeBinary(out, mentioned, next, oldest);
+            }
+        }
+
+        Set<User> mentioned() {
+            Set<User> mentioned = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < count; i++) mentioned.add(users[i]);
+            return mentioned;
+        }
+
+        long binaryLength(Set<User> mentioned) {
+            long length = 8 + 8 + 8 + varintSize(mentioned.size()) + varintSize(count);
+            for (User user : mentioned) length += varintSize(user.id) + varintSize(user.utf8.length) + user.utf8.length;
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                length += varintSize(users[i].id) + varintSize(zigzag(times[i] - previous)) + varintSize(lengths[i]) + lengths[i];
+                previous = times[i];
+            }
+            return length;
+        }
+
+        void writeBinary(DataOutputStream out, Set<User> mentioned, long next, long oldest) throws IOException {
+            out.writeLong(count > 0 ? first : next);
+            out.writeLong(next);
+            out.writeLong(oldest);
+            writeVarint(out, mentioned.size());
+            for (User user : mentioned) {
+                writeVarint(out, user.id);
+                writeVarint(out, user.utf8.length);
+                out.write(user.utf8);
+            }
+            writeVarint(out, count);
+            byte[] copy = null;
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarint(out, users[i].id);
+                writeVarint(out, zigzag(times[i] - previous));
+                previous = times[i];
+                writeVarint(out, lengths[i]);
+                if (texts[i] instanceof byte[]) {
+                    out.write((byte[]) texts[i], offsets[i], lengths[i]);
+                    continue;
+                }
+                if (copy == null) copy = new byte[8192];
+                for (int done = 0; done < lengths[i]; ) {
+                    int n = Math.min(copy.length, lengths[i] - done);
+                    ((ByteBuffer) texts[i]).get(offsets[i] + done, copy, 0, n);
+                    out.write(copy, 0, n);
+                    done += n;
+                }
+            }
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static int varintSize(long value) {
+            int size = 1;
+            while ((value >>>= 7) != 0) size++;
+            return size;
+        }
+
+        private static void writeVarint(DataOutputStream out, long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    // format=bin selects the binary encoding; checked on the raw query so long-poll answers need no parsing
+    static boolean binary(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        return query != null && ("&" + query + "&").contains("&format=bin&");
+    }
+
+    // Writes each message's stored parts; nothing is re-encoded per request beyond escaping the text.
+    // At most maxMessages go into one response: "more" says whether the log holds newer ones, and "next"
+    // points just past the last one sent, so a client following the cursor fetches the rest straight away.
+    static void writeMessages(HttpExchange exchange, MessageLog log, long since) throws IOException {
+        // Read up to a snapshot of the log's end, so the body is exactly the state the validator names
+        long oldest = log.first();
+        long end = log.next();
+        Batch batch = new Batch();
+        long from = Math.max(since, oldest);
+        long next = log.readRaw(from, from > end - maxMessages ? end : from + maxMessages, batch);
+        validate(exchange, oldest, end);
+        if (binary(exchange)) batch.writeBinary(exchange, next, oldest);
+        else writeMessages(exchange, batch, ("],\"more\":" + (next < end) + ",\"next\":" + next + "}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // "before" is the cursor for the next older page and "more" whether there is one; "next" is the cursor
+    // to follow newer messages from, so before=<anything large> fetches the latest page and where to resume
+    static void writePage(HttpExchange exchange, MessageLog log, long before, int limit) throws IOException {
+        Batch batch = new Batch();
+        long oldest = log.first();
+        long end = log.next();
+        long to = Math.max(oldest, Math.min(before, end));
+        long from = Math.max(oldest, to - limit);
+        long next = log.readRaw(from, to, batch);
+        validate(exchange, oldest, end);
+        if (binary(exchange)) batch.writeBinary(exchange, next, oldest);
+        else writeMessages(exchange, batch, ("],\"before\":" + from + ",\"more\":" + (from > oldest) + ",\"next\":" + next + "}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A /messages response is fixed by its URL and the range the log held. The tag is weak because gzip and
+    // identity bodies share it.
+    private static String messagesTag(long oldest, long end) {
+        return "W/\"" + oldest + "-" + end + "\"";
+    }
+
+    private static void validate(HttpExchange exchange, long oldest, long end) {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("ETag", messagesTag(oldest, end));
+        headers.add("Cache-Control", "no-cache");
+    }
+
+    // Answers 304 when If-None-Match lists the current tag; the comparison is weak, as RFC 9110 asks for
+    // If-None-Match, so W/"x" and "x" match each other
+    static boolean notModified(HttpExchange exchange, String etag) throws IOException {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) return false;
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        if (!ifNoneMatch.contains(opaque) && !ifNoneMatch.trim().equals("*")) return false;
+        exchange.getResponseHeaders().add("ETag", etag);
+        // The JDK server only keeps the connection open after a bodiless response once the request body is done
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(304, -1);
+        return true;
+    }
+
+    private static void writeMessages(HttpExchange exchange, Batch batch, byte[] suffix) throws IOException {
+        long length = MESSAGES_PREFIX.length + batch.jsonLength() + suffix.length;
+        try (JsonWriter out = new JsonWriter(responseBody(exchange, "application/json; charset=UTF-8", length))) {
+            out.raw(MESSAGES_PREFIX);
+            batch.writeJson(out);
+            out.raw(suffix);
+        }
+    }
+
+    // Sends the headers of a message response of the given length. Up to gzipBytes it goes out as it is, with
+    // a Content-Length; above that, clients that accept gzip get a compressed chunked stream instead, as the
+    // compressed length is not known until it has been written.
+    private static OutputStream responseBody(HttpExchange exchange, String contentType, long length) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Content-Type", contentType);
+        headers.add("Vary", "Accept-Encoding");
+        if (gzipBytes >= 0 && length > gzipBytes
+                && PageHandler.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding")).equals("gzip")) {
+            headers.add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            return new GzipStream(exchange.getResponseBody());
+        }
+        exchange.sendResponseHeaders(200, length);
+        return exchange.getResponseBody();
+    }
+
+    // Server-Sent Events: one open chunked response per browser, pushed to by the stream Fanout.
+    // Event ids are "next" cursors, so Last-Event-ID on reconnect resumes exactly like ?since=.
+    static class StreamHandler implements HttpHandler {
+        private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] VACANT_RETRY = "retry: 5000\n\n".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = queryToMap(exchange.getRequestURI().getQuery());
+            Room room = room(exchange, params, false);
+            if (room == null) return;
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            long since = 0;
+            try { since = Long.parseLong(lastEventId != null ? lastEventId.trim() : params.getOrDefault("since", "0")); } catch (Exception ignored) {}
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=UTF-8");
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            if (room.vacant()) {
+                // Nothing was ever sent here; the browser reconnects after the retry time and finds the room once it exists
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(VACANT_RETRY);
+                }
+                return;
+            }
+            // The exchange stays open after this returns; the Fanout owns it from here on
+            room.stream.subscribe(exchange.getResponseBody(), exchange::close, since);
+        }
+
+        static byte[] encodeEvent(long seq, Message message) {
+            byte[] head = ("id: " + (seq + 1) + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+            byte[] json = message.json();
+            byte[] event = new byte[head.length + json.length + 2];
+            System.arraycopy(head, 0, event, 0, head.length);
+            System.arraycopy(json, 0, event, head.length, json.length);
+            event[event.length - 2] = '\n';
+            event[event.length - 1] = '\n';
+            return event;
+        }
+
+        // Comment lines keep idle connections alive through proxies and reveal dead clients
+        static void startHeartbeat(long seconds) {
+            ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "chat-stream-heartbeat");
+                t.setDaemon(true);
+                return t;
+            });
+            heartbeat.scheduleAtFixedRate(() -> {
+                for (Room room : rooms.all()) room.stream.broadcast(HEARTBEAT);
+            }, seconds, seconds, TimeUnit.SECONDS);
         }
     }
 
     static class UsersHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            if (!admitPoll(exchange)) return;
+            Map<String, String> params = queryToMap(exchange.getRequestURI().getQuery());
+            Room room = room(exchange, params, false);
+            if (room == null) return;
             if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-                Map<String, String> params = queryToMap(exchange.getRequestURI().getQuery());
                 String user = params.getOrDefault("user", "anon");
                 if (!user.isEmpty()) {
-                    activeUsers.add(user);
+                    room.userSeen(user);
                 }
                 exchange.sendResponseHeaders(200, 2);
                 OutputStream os = exchange.getResponseBody();
                 os.write("OK".getBytes());
                 os.close();
             } else {
-                // GET: return list of users as JSON
-                StringBuilder json = new StringBuilder("[");
-                boolean first = true;
-                for (String user : activeUsers) {
-                    if (!first) json.append(",");
-                    json.append("\"").append(user.replace("\"", "\\\"")).append("\"");
-                    first = false;
+                // GET: the full list, or with since=<version> only the joins and leaves after that version.
+                // A user=<name> parameter counts as activity, which is how the page keeps its user present.
+                // The presence version is the validator: a client that is up to date gets 304.
+                room.userSeen(params.getOrDefault("user", ""));
+                long version = room.presence.version();
+                String etag = "\"" + version + "\"";
+                if (notModified(exchange, etag)) return;
+                byte[] response;
+                try {
+                    response = params.containsKey("since")
+                            ? room.presence.deltaJson(Long.parseLong(params.get("since"))).getBytes(StandardCharsets.UTF_8)
+                            : room.presence.snapshotBytes();
+                } catch (NumberFormatException e) {
+                    response = room.presence.snapshotBytes();
                 }
-                json.append("]");
-                String response = "{\"users\":" + json + "}";
-                exchange.getResponseHeaders().add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, response.length());
+                Headers headers = exchange.getResponseHeaders();
+                headers.add("Content-Type", "application/json; charset=UTF-8");
+                headers.add("Cache-Control", "no-cache");
+                // Only if nobody joined or left while the body was built, or it could be newer than the tag
+                if (room.presence.version() == version) headers.add("ETag", etag);
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+            }
+        }
+    }
+
+    // /search?q=<words>&user=<author>&limit=20: the newest messages containing all the words (and/or sent by
+    // the author), newest first, as {"results":[{"seq":N,"time":T,"text":"..."}]}
+    static class SearchHandler implements HttpHandler {
+        private static final int MAX_LIMIT = 200;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!admitPoll(exchange)) return;
+            Map<String, String> params = queryToMap(exchange.getRequestURI().getQuery());
+            Room room = room(exchange, params, false);
+            if (room == null) return;
+            String query = params.getOrDefault("q", "");
+            String user = params.get("user");
+            if (user != null && user.isEmpty()) user = null;
+            if (SearchIndex.tokenize(query).isEmpty() && user == null) {
+                byte[] response = "Missing q or user".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, response.length);
                 OutputStream os = exchange.getResponseBody();
-                os.write(response.getBytes());
+                os.write(response);
                 os.close();
+                return;
+            }
+            int limit = 20;
+            try { limit = Math.min(MAX_LIMIT, Integer.parseInt(params.getOrDefault("limit", "20"))); } catch (Exception ignored) {}
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write("{\"results\":[".getBytes(StandardCharsets.UTF_8));
+            boolean first = true;
+            for (long seq : room.search.search(query, user, limit)) {
+                Message message = room.log.get(seq);
+                if (message == null) continue;
+                if (!first) body.write(',');
+                first = false;
+                // The message object with the sequence number spliced in front
+                body.write(("{\"seq\":" + seq + ",").getBytes(StandardCharsets.UTF_8));
+                byte[] json = message.json();
+                body.write(json, 1, json.length - 1);
             }
+            body.write("]}".getBytes(StandardCharsets.UTF_8));
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.size());
+            OutputStream os = exchange.getResponseBody();
+            body.writeTo(os);
+            os.close();
+        }
+    }
+
+    // Tells the page where the WebSocket endpoint listens; 404 when it is disabled
+    static class WebSocketInfoHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (webSocket == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] response = ("{\"port\":" + webSocketPort + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+        }
+    }
+
+    // Executor counters, to watch queue depth and overload shedding
+    static class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int parked = 0;
+            int streams = 0;
+            for (Room room : rooms.all()) {
+                parked += room.longPoll.parked();
+                streams += room.stream.size() + room.sockets.size();
+            }
+            String response = "{\"executor\":" + Json.quote(executor.strategy())
+                    + ",\"threads\":" + executor.threads()
+                    + ",\"inFlight\":" + executor.inFlight()
+                    + ",\"queueDepth\":" + executor.queueDepth()
+                    + ",\"submitted\":" + executor.submitted()
+                    + ",\"rejected\":" + executor.rejected()
+                    + ",\"rooms\":" + rooms.all().size()
+                    + ",\"parked\":" + parked
+                    + ",\"streams\":" + streams
+                    + (cluster != null ? ",\"cluster\":{\"role\":\"" + cluster.role() + "\",\"peers\":" + cluster.peers() + "}" : "")
+                    + ",\"limited\":{" + limited(sendPerUser) + "," + limited(sendPerAddress) + "," + limited(sendGlobal)
+                    + "," + limited(pollPerAddress) + "," + limited(pollGlobal) + "}}";
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+
+        private static String limited(RateLimiter limiter) {
+            return Json.quote(limiter.name()) + ":" + limiter.limited();
+        }
+    }
+
+    // Prometheus text exposition of Metrics
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] bytes = metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
         }
     }
 
     // Utility method to convert query string to map
-    private static Map<String, String> queryToMap(String query) {
+    static Map<String, String> queryToMap(String query) {
         Map<String, String> map = new HashMap<>();
         if (query != null) {
             String[] pairs = query.split("&");
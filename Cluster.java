@@ -0,0 +1,446 @@
+package javaChat;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Several server processes sharing one logical chat. -Dchat.cluster.nodes lists every node's replication
+// address; the first is the leader and -Dchat.cluster.self says which one this process is.
+// The leader owns the sequence numbers: followers forward sends to it and append only what it replicates,
+// so every replica is a prefix of the leader's log and /messages, /users and the push transports are all
+// served locally. Each follower keeps one TCP connection to the leader:
+//   follower -> leader: HELLO (shared secret, next sequence number of each room it holds), SEND, TOUCH (presence)
+//   leader -> follower: APPEND batches, ACK for a SEND, TOUCH, PING when idle
+// The leader writes everything appended since the last pass as one batch per room and flushes once.
+// A SEND is acknowledged only after the appends it produced went out on the same connection, so a client
+// polling the follower it sent through always sees its own message. A restarted follower replays its
+// journal and then asks for everything after it; the leader should keep a journal too.
+// Anyone who can reach the leader's cluster port can post as any user, so it belongs on a private interface;
+// with -Dchat.cluster.secret set on every node, connections whose HELLO does not carry it are refused.
+public class Cluster implements MessageLog.Listener {
+    private static final byte HELLO = 'H', SEND = 'S', TOUCH = 'T', APPEND = 'A', ACK = 'K', PING = 'P';
+    private static final int MAX_BATCH = 512;
+    private static final int PING_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final long SEND_TIMEOUT_MILLIS = 5000;
+
+    private final Rooms rooms;
+    private final InetSocketAddress leader;
+    private final InetSocketAddress self;
+    private final boolean isLeader;
+    private final long touchIntervalMillis;
+    private final byte[] secret;
+    // Last time each room/user pair was passed on, so presence crosses the network a few times per TTL at most
+    private final ConcurrentHashMap<String, Long> touched = new ConcurrentHashMap<>();
+
+    // Leader: connected followers, woken whenever any room grows
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private final Object changed = new Object();
+    private final AtomicLong changes = new AtomicLong();
+
+    // Follower: the connection to the leader and the sends waiting for its ACK
+    private volatile DataOutputStream toLeader;
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    // An empty secret accepts every follower
+    public Cluster(Rooms rooms, InetSocketAddress leader, InetSocketAddress self, long touchIntervalMillis, String secret) {
+        this.rooms = rooms;
+        this.leader = leader;
+        this.self = self;
+        this.isLeader = leader.equals(self);
+        this.touchIntervalMillis = touchIntervalMillis;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Null when -Dchat.cluster.nodes is not set, i.e. a standalone server
+    public static Cluster fromSystemProperties(Rooms rooms) {
+        String nodes = System.getProperty("chat.cluster.nodes", "");
+        if (nodes.isEmpty()) return null;
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String node : nodes.split(",")) addresses.add(address(node.trim()));
+        String self = System.getProperty("chat.cluster.self", "");
+        if (self.isEmpty() || !addresses.contains(address(self))) {
+            throw new IllegalArgumentException("-Dchat.cluster.self must be one of " + nodes);
+        }
+        return new Cluster(rooms, addresses.get(0), address(self), Long.getLong("chat.presence.ttlSeconds", 60) * 1000 / 4,
+                System.getProperty("chat.cluster.secret", ""));
+    }
+
+    private static InetSocketAddress address(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    public boolean isLeader() {
+        return isLeader;
+    }
+
+    public int peers() {
+        return isLeader ? followers.size() : toLeader != null ? 1 : 0;
+    }
+
+    public String role() {
+        return isLeader ? "leader" : "follower";
+    }
+
+    // Called once every room from the journal exists
+    public void start() throws IOException {
+        if (isLeader) {
+            ServerSocket server = new ServerSocket();
+            server.bind(self);
+            if (secret.length == 0) {
+                System.out.println("Cluster: no -Dchat.cluster.secret; any host that reaches " + self + " can post as any user");
+            }
+            daemon("chat-cluster-accept", () -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        Follower follower = new Follower(socket);
+                        daemon("chat-cluster-follower", follower::serve);
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        } else {
+            daemon("chat-cluster-leader", this::followLeader);
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Registered on every room's log on the leader
+    @Override
+    public void appended(long from, long to) {
+        wake();
+    }
+
+    private void wake() {
+        changes.incrementAndGet();
+        synchronized (changed) {
+            changed.notifyAll();
+        }
+    }
+
+    // Sends through the leader and returns once this node's replica holds the messages
+    public void forward(Room room, String user, List<String> texts) throws IOException {
+        DataOutputStream out = toLeader;
+        if (out == null) throw new IOException("Not connected to the cluster leader");
+        long id = ids.incrementAndGet();
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        pending.put(id, ack);
+        try {
+            synchronized (out) {
+                out.writeByte(SEND);
+                out.writeLong(id);
+                writeString(out, room.name);
+                writeString(out, user);
+                out.writeInt(texts.size());
+                for (String text : texts) writeString(out, text);
+                out.flush();
+            }
+            ack.get(SEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Cluster leader did not confirm the send", e);
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    // Presence activity seen on this node; passed to the leader (follower) or to every follower (leader)
+    public void seen(Room room, String user) {
+        String key = room.name + '\n' + user;
+        long now = System.currentTimeMillis();
+        Long last = touched.get(key);
+        if (last != null && now - last < touchIntervalMillis) return;
+        if (touched.size() > 100_000) touched.clear();
+        touched.put(key, now);
+        if (isLeader) {
+            for (Follower follower : followers) follower.touches.add(new String[] { room.name, user });
+            wake();
+            return;
+        }
+        DataOutputStream out = toLeader;
+        if (out == null) return;
+        try {
+            synchronized (out) {
+                out.writeByte(TOUCH);
+                writeString(out, room.name);
+                writeString(out, user);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // The reader notices the broken connection and reconnects
+        }
+    }
+
+    // Leader side of one follower connection: this thread streams to it, a second one reads its requests
+    private final class Follower {
+        final Socket socket;
+        final Map<String, Long> cursors = new HashMap<>();
+        final ConcurrentLinkedQueue<long[]> acks = new ConcurrentLinkedQueue<>();
+        final ConcurrentLinkedQueue<String[]> touches = new ConcurrentLinkedQueue<>();
+        volatile boolean open = true;
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+
+        void serve() {
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                if (in.readByte() != HELLO) throw new IOException("Expected HELLO");
+                if (!MessageDigest.isEqual(secret, readString(in).getBytes(StandardCharsets.UTF_8))) {
+                    System.out.println("Cluster: refused " + socket.getRemoteSocketAddress() + ", wrong secret");
+                    open = false;
+                    socket.close();
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) cursors.put(readString(in), in.readLong());
+                followers.add(this);
+                daemon("chat-cluster-requests", () -> readRequests(in));
+                System.out.println("Cluster: follower " + socket.getRemoteSocketAddress() + " connected");
+                stream(out);
+            } catch (IOException | UncheckedIOException e) {
+                // Follower went away; it reconnects and says where to resume
+            } finally {
+                close();
+            }
+        }
+
+        private void stream(DataOutputStream out) throws IOException {
+            List<Message> batch = new ArrayList<>(MAX_BATCH);
+            while (open) {
+                long seen = changes.get();
+                // ACKs taken before reading the logs go out after the appends they are waiting for
+                List<long[]> readyAcks = new ArrayList<>();
+                for (long[] ack; (ack = acks.poll()) != null; ) readyAcks.add(ack);
+                boolean wrote = false;
+                for (Room room : rooms.all()) {
+                    long cursor = cursors.getOrDefault(room.name, 0L);
+                    if (cursor >= room.log.next()) continue;
+                    long[] from = { -1 };
+                    long end = room.log.read(cursor, (seq, message) -> {
+                        // A batch is consecutive; after a hole the follower skips to where the next one starts
+                        if (!batch.isEmpty() && seq != from[0] + batch.size()) writeAppend(out, room.name, from[0], batch);
+                        if (batch.isEmpty()) from[0] = seq;
+                        batch.add(message);
+                        if (batch.size() == MAX_BATCH) writeAppend(out, room.name, from[0], batch);
+                    });
+                    if (!batch.isEmpty()) writeAppend(out, room.name, from[0], batch);
+                    cursors.put(room.name, end);
+                    wrote = true;
+                }
+                for (String[] touch; (touch = touches.poll()) != null; wrote = true) {
+                    out.writeByte(TOUCH);
+                    writeString(out, touch[0]);
+                    writeString(out, touch[1]);
+                }
+                for (long[] ack : readyAcks) {
+                    out.writeByte(ACK);
+                    out.writeLong(ack[0]);
+                    out.writeBoolean(ack[1] != 0);
+                    wrote = true;
+                }
+                if (wrote) {
+                    out.flush();
+                    continue;
+                }
+                synchronized (changed) {
+                    if (changes.get() == seen && acks.isEmpty()) {
+                        try {
+                            changed.wait(PING_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                if (changes.get() == seen && acks.isEmpty()) {
+                    out.writeByte(PING);
+                    out.flush();
+                }
+            }
+        }
+
+        private void writeAppend(DataOutputStream out, String room, long from, List<Message> batch) {
+            try {
+                out.writeByte(APPEND);
+                writeString(out, room);
+                out.writeLong(from);
+                out.writeInt(batch.size());
+                for (Message message : batch) {
+                    writeString(out, message.user.name);
+                    out.writeLong(message.time);
+                    out.writeInt(message.text.length);
+                    out.write(message.text);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                batch.clear();
+            }
+        }
+
+        private void readRequests(DataInputStream in) {
+            try {
+                while (open) {
+                    byte type = in.readByte();
+                    if (type == SEND) {
+                        long id = in.readLong();
+                        String name = readString(in);
+                        String user = readString(in);
+                        int count = in.readInt();
+                        List<String> texts = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) texts.add(readString(in));
+                        boolean ok = true;
+                        try {
+                            rooms.get(name).postAll(user, texts);
+                        } catch (IllegalArgumentException | IOException | UncheckedIOException e) {
+                            ok = false;
+                        }
+                        acks.add(new long[] { id, ok ? 1 : 0 });
+                        wake();
+                    } else if (type == TOUCH) {
+                        String name = readString(in);
+                        String user = readString(in);
+                        try {
+                            rooms.find(name).userSeen(user);
+                        } catch (IllegalArgumentException | UncheckedIOException ignored) {
+                        }
+                    } else {
+                        throw new IOException("Unexpected frame " + type);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (!open) return;
+            open = false;
+            followers.remove(this);
+            try { socket.close(); } catch (IOException ignored) {}
+            wake();
+            System.out.println("Cluster: follower " + socket.getRemoteSocketAddress() + " disconnected");
+        }
+    }
+
+    // Follower: keeps a connection to the leader, reconnecting with backoff, and applies what it streams
+    private void followLeader() {
+        long backoff = 250;
+        while (true) {
+            long connected = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.connect(leader, READ_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Collection<Room> held = new ArrayList<>(rooms.all());
+                out.writeByte(HELLO);
+                writeString(out, new String(secret, StandardCharsets.UTF_8));
+                out.writeInt(held.size());
+                for (Room room : held) {
+                    writeString(out, room.name);
+                    out.writeLong(room.log.next());
+                }
+                out.flush();
+                toLeader = out;
+                System.out.println("Cluster: following leader " + leader);
+                applyStream(in);
+            } catch (IOException | RuntimeException e) {
+                // Anything else the stream throws is handled like a lost connection, so this thread never dies
+                if (toLeader != null) System.out.println("Cluster: lost the leader (" + e + "), reconnecting");
+            } finally {
+                toLeader = null;
+                for (CompletableFuture<Void> ack : pending.values()) ack.completeExceptionally(new IOException("Leader connection lost"));
+            }
+            // A connection that outlived the read timeout was working; one refused at once (a wrong secret) keeps backing off
+            if (System.nanoTime() - connected > TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MILLIS)) backoff = 250;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(5000, backoff * 2);
+        }
+    }
+
+    private void applyStream(DataInputStream in) throws IOException {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            byte type = in.readByte();
+            if (type == APPEND) {
+                Room room = replica(readString(in));
+                long seq = in.readLong();
+                int count = in.readInt();
+                // A room this node cannot hold is read past; the leader resends it after the next HELLO
+                long next = room != null ? room.log.next() : Long.MAX_VALUE;
+                for (int i = 0; i < count; i++, seq++) {
+                    String user = readString(in);
+                    long time = in.readLong();
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    if (seq < next) continue;
+                    // The leader no longer had what this replica was missing
+                    if (batch.isEmpty() && seq > next) room.log.skipTo(seq);
+                    batch.add(Message.restore(User.of(user), text, time));
+                }
+                if (!batch.isEmpty()) room.log.appendAll(batch);
+                batch.clear();
+            } else if (type == ACK) {
+                CompletableFuture<Void> ack = pending.get(in.readLong());
+                boolean ok = in.readBoolean();
+                if (ack != null) {
+                    if (ok) ack.complete(null);
+                    else ack.completeExceptionally(new IOException("Rejected by the leader"));
+                }
+            } else if (type == TOUCH) {
+                Room room = replica(readString(in));
+                String user = readString(in);
+                if (room != null) room.presence.touch(user);
+            } else if (type != PING) {
+                throw new IOException("Unexpected frame " + type);
+            }
+        }
+    }
+
+    // Null when the room cannot be created here (rooms.max reached, or its journal failed to open)
+    private Room replica(String name) {
+        try {
+            return rooms.get(name);
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            System.out.println("Cluster: cannot replicate room " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Length-prefixed UTF-8; DataOutput.writeUTF stops at 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 16 << 20) throw new IOException("Bad string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,156 @@
+package javaChat;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Startup configuration without a terminal. Every setting is a chat.* system property, read where it is
+// used; this only decides their values before anything reads them. Sources, strongest first:
+//   --<key>=<value> flags, with key the property name without "chat." (--port=8081, --retention.count=0)
+//   -Dchat.<key>=<value> on the java command line
+//   CHAT_<KEY> environment variables, dots and camel case as underscores (CHAT_EXECUTOR_MAX_IN_FLIGHT)
+//   a properties file: --config=<path>, CHAT_CONFIG or -Dchat.config, else ./chat.properties if present;
+//   keys may be written with or without the "chat." prefix
+// Unknown flags and file keys are errors, so a typo does not silently start a server with defaults.
+public class Config {
+    // Every key the server reads, with its default for --help; chat.limit.* are expanded below
+    private static final String[][] KEYS = {
+        { "bind", "localhost", "address to listen on" },
+        { "port", "8081", "HTTP port" },
+        { "ws.port", "port + 1", "WebSocket port, negative to disable" },
+        { "ws.maxConnections", "1000", "open WebSocket connections, each holding a reader thread; more get a 503" },
+        { "warmupMillis", "100", "time spent on the response paths before the listener opens, 0 to skip" },
+        { "train", "false", "start on a loopback port, exercise every endpoint, exit (for -XX:ArchiveClassesAtExit)" },
+        { "executor", "bounded", "bounded, cached or virtual" },
+        { "executor.threads", "4 x cores, at least 8", "worker threads" },
+        { "executor.queue", "1024", "requests waiting for a thread" },
+        { "executor.maxInFlight", "10000", "requests being handled before 503" },
+        { "executor.retryAfterSeconds", "1", "Retry-After on 503" },
+        { "journal.dir", "journal", "journal directory, empty to disable" },
+        { "journal.fsync", "group", "always, group or os" },
+        { "journal.groupCommitMillis", "10", "flush interval for fsync=group" },
+        { "journal.segmentBytes", "67108864", "journal segment file size" },
+        { "journal.maxSegments", "0", "journal segments kept, 0 keeps all" },
+        { "retention.count", "100000", "messages kept per room, 0 for no limit" },
+        { "retention.bytes", "67108864", "message bytes kept per room, 0 for no limit" },
+        { "retention.ageMinutes", "0", "message age kept, 0 for no limit" },
+        { "history.hotSegments", "8", "newest segments kept uncompressed" },
+        { "history.cacheSegments", "16", "decompressed cold segments cached" },
+        { "history.offHeap", "false", "keep message text in direct buffers; they count against -XX:MaxDirectMemorySize (default: -Xmx)" },
+        { "history.chunkBytes", "65536", "off-heap chunk size" },
+        { "rooms.max", "1000", "rooms created before 400" },
+        { "messages.maxPerResponse", "2000", "messages per /messages?since= response; the rest follow the next cursor" },
+        { "messages.gzipBytes", "8192", "message responses larger than this are gzipped for clients that accept it, negative never" },
+        { "longpoll.maxWaitMillis", "30000", "longest long-poll" },
+        { "presence.ttlSeconds", "60", "idle time before a user leaves" },
+        { "presence.tickMillis", "1000", "presence expiry resolution" },
+        { "stream.heartbeatSeconds", "15", "SSE heartbeat interval" },
+        { "stream.maxQueuedBytes", "1048576", "bytes queued for a slow stream before it is dropped" },
+        { "stream.writers", "cores, at least 4", "threads writing to SSE and WebSocket subscribers" },
+        { "stream.stallMillis", "10000", "time a subscriber write may block before it is dropped" },
+        { "cluster.nodes", "", "comma-separated host:port of every node, leader first" },
+        { "cluster.self", "", "this node's host:port in cluster.nodes" },
+        { "cluster.secret", "", "shared secret followers present to the leader, empty accepts any" },
+    };
+    private static final String[] LIMITS = { "send.user", "send.address", "send.global", "poll.address", "poll.global" };
+
+    private static final Map<String, String[]> KNOWN = new LinkedHashMap<>();
+    static {
+        for (String[] key : KEYS) KNOWN.put(key[0], key);
+        for (String limit : LIMITS) {
+            KNOWN.put("limit." + limit + ".perSecond", new String[] { "limit." + limit + ".perSecond", "", "rate, 0 to disable" });
+            KNOWN.put("limit." + limit + ".burst", new String[] { "limit." + limit + ".burst", "", "bucket size" });
+        }
+    }
+
+    // Applies all sources to the system properties; returns false if the process should exit (--help)
+    public static boolean load(String[] args) throws IOException {
+        Map<String, String> flags = new LinkedHashMap<>();
+        String file = null;
+        for (String arg : args) {
+            if (arg.equals("--help") || arg.equals("-h")) {
+                printHelp();
+                return false;
+            }
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("Unexpected argument " + arg + " (see --help)");
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? "true" : arg.substring(eq + 1);
+            if (key.equals("config")) {
+                file = value;
+            } else if (KNOWN.containsKey(key)) {
+                flags.put(key, value);
+            } else {
+                throw new IllegalArgumentException("Unknown option --" + key + " (see --help)");
+            }
+        }
+        if (file == null) file = System.getenv("CHAT_CONFIG");
+        if (file == null) file = System.getProperty("chat.config");
+        if (file == null && Files.isRegularFile(Paths.get("chat.properties"))) file = "chat.properties";
+
+        Map<String, String> values = new LinkedHashMap<>();
+        if (file != null) values.putAll(readFile(Paths.get(file)));
+        values.putAll(fromEnvironment(System.getenv()));
+        for (String key : KNOWN.keySet()) {
+            String property = System.getProperty("chat." + key);
+            if (property != null) values.put(key, property);
+        }
+        values.putAll(flags);
+        values.forEach((key, value) -> System.setProperty("chat." + key, value));
+        return true;
+    }
+
+    // True if the bind address or port came from any source, i.e. the operator does not expect a prompt
+    public static boolean addressConfigured() {
+        return System.getProperty("chat.bind") != null || System.getProperty("chat.port") != null;
+    }
+
+    private static Map<String, String> readFile(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(in);
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            String key = name.startsWith("chat.") ? name.substring("chat.".length()) : name;
+            if (!KNOWN.containsKey(key)) throw new IllegalArgumentException("Unknown setting " + name + " in " + path);
+            values.put(key, properties.getProperty(name).trim());
+        }
+        return values;
+    }
+
+    // CHAT_RETENTION_COUNT -> retention.count, CHAT_EXECUTOR_MAX_IN_FLIGHT -> executor.maxInFlight.
+    // Matched against the known keys, since the underscores cannot say which were dots.
+    static Map<String, String> fromEnvironment(Map<String, String> env) {
+        Map<String, String> byEnvName = new HashMap<>();
+        for (String key : KNOWN.keySet()) byEnvName.put(envName(key), key);
+        Map<String, String> values = new LinkedHashMap<>();
+        env.forEach((name, value) -> {
+            String key = byEnvName.get(name);
+            if (key != null) values.put(key, value);
+        });
+        return values;
+    }
+
+    static String envName(String key) {
+        StringBuilder name = new StringBuilder("CHAT_");
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '.') name.append('_');
+            else if (Character.isUpperCase(c)) name.append('_').append(c);
+            else name.append(Character.toUpperCase(c));
+        }
+        return name.toString();
+    }
+
+    private static void printHelp() {
+        System.out.println("Usage: java javaChat.ChatHttpServer [--config=<file>] [--<key>=<value> ...]");
+        System.out.println("Each key is also read from -Dchat.<key>, the CHAT_<KEY> environment variable and the config file.");
+        System.out.println("Without any bind address or port configured, the server asks for one on the terminal.");
+        System.out.println();
+        for (String[] key : KNOWN.values()) {
+            String text = key[2] + (key[1].isEmpty() ? "" : " (default " + key[1] + ")");
+            System.out.printf("  --%-28s %-32s %s%n", key[0], envName(key[0]), text);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package javaChat;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pushes appended log entries to long-lived subscriber connections.
+// The append only records how far the log has grown; a writer thread then encodes each entry once per
+// Fanout and queues the same bytes for every subscriber.
+// Subscribers are written by a fixed pool of -Dchat.stream.writers threads shared by all rooms, rather than
+// a thread each. One whose queue grows past maxQueuedBytes is considered too slow and is disconnected, and
+// a write that has not returned after -Dchat.stream.stallMillis is aborted so it cannot hold a writer.
+public class Fanout implements MessageLog.Listener {
+    public interface Encoder {
+        byte[] encode(long seq, Message message);
+    }
+
+    private interface Io {
+        void run() throws IOException;
+    }
+
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+            Math.max(1, Integer.getInteger("chat.stream.writers", Math.max(4, Runtime.getRuntime().availableProcessors()))),
+            daemon("chat-fanout"));
+    private static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(100, Long.getLong("chat.stream.stallMillis", 10_000)));
+    // Subscribers with a write in progress; at most one per writer thread
+    private static final Set<Subscriber> WRITING = ConcurrentHashMap.newKeySet();
+    static {
+        long period = Math.max(50, TimeUnit.NANOSECONDS.toMillis(STALL_NANOS) / 4);
+        Executors.newSingleThreadScheduledExecutor(daemon("chat-fanout-watchdog")).scheduleWithFixedDelay(() -> {
+            long now = System.nanoTime();
+            for (Subscriber sub : WRITING) sub.checkStalled(now);
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private final MessageLog log;
+    private final Encoder encoder;
+    private final long maxQueuedBytes;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    // End of the appended range not yet fanned out; "fanned" is only touched under fanOutLock
+    private volatile long published;
+    private final AtomicBoolean fanOutPending = new AtomicBoolean();
+    private final Object fanOutLock = new Object();
+    private long fanned;
+
+    public Fanout(MessageLog log, Encoder encoder, long maxQueuedBytes) {
+        this.log = log;
+        this.encoder = encoder;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    // Replays everything after "since" on the calling thread, then switches the subscriber to live pushes.
+    // The caller must have sent any protocol preamble already. The replay is flushed before the subscriber
+    // goes live: from then on only the writers touch the stream.
+    public Subscriber subscribe(OutputStream out, Closeable connection, long since) throws IOException {
+        Subscriber sub = new Subscriber(out, connection);
+        subscribers.add(sub);
+        long cursor = since;
+        try {
+            while (true) {
+                cursor = log.read(cursor, (seq, message) -> {
+                    try {
+                        out.write(encoder.encode(seq, message));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.flush();
+                synchronized (sub) {
+                    // Live once nothing was appended during the replay; later pushes start at the cursor
+                    if (log.next() == cursor) {
+                        sub.cursor = cursor;
+                        sub.live = true;
+                        break;
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            sub.close();
+            throw e.getCause();
+        } catch (IOException e) {
+            sub.close();
+            throw e;
+        }
+        return sub;
+    }
+
+    @Override
+    public void appended(long from, long to) {
+        published = to;
+        if (!subscribers.isEmpty() && fanOutPending.compareAndSet(false, true)) WRITERS.execute(this::fanOut);
+    }
+
+    // Encodes each newly appended entry once and queues it for every subscriber still behind it
+    private void fanOut() {
+        synchronized (fanOutLock) {
+            fanOutPending.set(false);
+            long to = published;
+            long from = to;
+            for (Subscriber sub : subscribers) from = Math.min(from, sub.cursor());
+            from = Math.max(from, fanned);
+            if (from < to) {
+                log.read(from, to, (seq, message) -> {
+                    byte[] frame = encoder.encode(seq, message);
+                    for (Subscriber sub : subscribers) sub.offer(seq, frame);
+                });
+            }
+            fanned = to;
+        }
+    }
+
+    // Queues protocol-level bytes (heartbeats, presence updates) for every live subscriber
+    public void broadcast(byte[] frame) {
+        for (Subscriber sub : subscribers) sub.offer(-1, frame);
+    }
+
+    public final class Subscriber {
+        private final OutputStream out;
+        private final Closeable connection;
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private long queuedBytes;
+        private long cursor;
+        private boolean live;
+        private boolean draining;
+        private boolean finishing;
+        private boolean closed;
+        // The writer thread and when its current write began, null between writes
+        private Thread writer;
+        private long writeStarted;
+
+        Subscriber(OutputStream out, Closeable connection) {
+            this.out = out;
+            this.connection = connection;
+        }
+
+        // Entries below this were replayed or already queued; before going live, nothing is needed
+        synchronized long cursor() {
+            return live ? cursor : Long.MAX_VALUE;
+        }
+
+        // Queues bytes for a log entry (seq >= 0) or an out-of-band frame (seq < 0)
+        synchronized void offer(long seq, byte[] frame) {
+            if (closed || finishing || !live) return;
+            if (seq >= 0) {
+                if (seq < cursor) return;
+                cursor = seq + 1;
+            }
+            queue.add(frame);
+            queuedBytes += frame.length;
+            if (queuedBytes > maxQueuedBytes) {
+                // Too slow: stop buffering; the connection is closed once the pending write returns
+                closed = true;
+                queue.clear();
+                subscribers.remove(this);
+                if (!draining) WRITERS.execute(this::close);
+                return;
+            }
+            if (!draining) {
+                draining = true;
+                WRITERS.execute(this::drain);
+            }
+        }
+
+        // Queues an out-of-band frame for this subscriber only
+        public void send(byte[] frame) {
+            offer(-1, frame);
+        }
+
+        // Queues a last frame and closes the connection once everything queued has been written
+        public void finish(byte[] frame) {
+            synchronized (this) {
+                if (closed || finishing) return;
+                queue.add(frame);
+                finishing = true;
+                if (draining) return;
+                draining = true;
+            }
+            WRITERS.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                byte[][] batch;
+                synchronized (this) {
+                    if (closed || queue.isEmpty()) {
+                        draining = false;
+                        if (finishing) closed = true;
+                        break;
+                    }
+                    batch = queue.toArray(new byte[0][]);
+                    queue.clear();
+                    queuedBytes = 0;
+                }
+                try {
+                    io(() -> {
+                        for (byte[] frame : batch) out.write(frame);
+                        out.flush();
+                    });
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+            }
+            boolean disconnect;
+            synchronized (this) { disconnect = closed; }
+            if (disconnect) close();
+        }
+
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+            }
+            subscribers.remove(this);
+            try {
+                io(connection::close);
+            } catch (IOException ignored) {}
+        }
+
+        // Runs a write (or a close, which may flush) where the watchdog can see it
+        private void io(Io action) throws IOException {
+            synchronized (this) {
+                writer = Thread.currentThread();
+                writeStarted = System.nanoTime();
+            }
+            WRITING.add(this);
+            try {
+                action.run();
+            } finally {
+                WRITING.remove(this);
+                synchronized (this) { writer = null; }
+                // An abort that raced with the write finishing must not reach the thread's next task
+                Thread.interrupted();
+            }
+        }
+
+        // The HTTP server's connections are interruptible channels, so interrupting the writer fails the
+        // write and closes the channel. A stream that ignores interrupts (a plain Socket) is closed instead.
+        void checkStalled(long now) {
+            synchronized (this) {
+                if (writer == null || now - writeStarted < STALL_NANOS) return;
+                closed = true;
+                queue.clear();
+                writer.interrupt();
+                subscribers.remove(this);
+                if (now - writeStarted < 2 * STALL_NANOS) return;
+            }
+            try {
+                connection.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package javaChat;
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// gzip (RFC 1952) output over pooled Deflaters. GZIPOutputStream creates a Deflater per stream, and with it a
+// few hundred KB of native zlib state that is only freed on close; responses here reuse a reset one instead.
+// Compression favours speed: these are live responses, not static assets.
+public class GzipStream extends DeflaterOutputStream {
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final ArrayBlockingQueue<Deflater> POOL = new ArrayBlockingQueue<>(32);
+
+    private final CRC32 crc = new CRC32();
+    private boolean released;
+
+    public GzipStream(OutputStream out) throws IOException {
+        super(out, take(), 4096);
+        out.write(HEADER);
+    }
+
+    private static Deflater take() {
+        Deflater deflater = POOL.poll();
+        return deflater != null ? deflater : new Deflater(Deflater.BEST_SPEED, true);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        super.write(bytes, offset, length);
+        crc.update(bytes, offset, length);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (def.finished()) return;
+        super.finish();
+        byte[] trailer = new byte[8];
+        int crc = (int) this.crc.getValue();
+        int size = (int) def.getBytesRead();
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (crc >>> (8 * i));
+            trailer[4 + i] = (byte) (size >>> (8 * i));
+        }
+        out.write(trailer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Once released the Deflater may belong to another stream, even if closing failed half way
+        if (released) return;
+        try {
+            super.close();
+        } finally {
+            released = true;
+            def.reset();
+            if (!POOL.offer(def)) def.end();
+        }
+    }
+}
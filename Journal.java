@@ -0,0 +1,235 @@
+package javaChat;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+// Durable, append-only copy of the message log in memory-mapped segment files.
+// Record layout: int payload length, int CRC32 (over everything after it), long seq, long time, payload.
+// The payload is the UTF-8 user name, a NUL byte and the UTF-8 text; older journals hold "user: text" instead.
+// A zero length marks the end of the written part of a segment; files are created full-size and zero-filled.
+// The log's writer only queues appended messages; the commit thread copies them into the mapping, rolls to
+// new segment files and forces, so a send never waits for the disk. When records reach the disk depends on
+// the fsync policy:
+//   always - force after every batch the commit thread writes
+//   group  - force dirty segments every groupCommitMillis
+//   os     - leave write-back to the operating system
+public class Journal implements MessageLog.Listener {
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    public enum Fsync { ALWAYS, GROUP, OS }
+
+    private static final ScheduledExecutorService COMMITTER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-journal-commit");
+        t.setDaemon(true);
+        return t;
+    });
+    // One shutdown hook for the process commits every journal still open
+    private static final Set<Journal> OPEN = ConcurrentHashMap.newKeySet();
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> OPEN.forEach(Journal::commit), "chat-journal-shutdown"));
+    }
+
+    private MessageLog log;
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final Fsync fsync;
+    private final CRC32 crc = new CRC32();
+    private volatile MappedByteBuffer current;
+    private volatile boolean dirty;
+    private final ScheduledFuture<?> committer;
+    // Appended but not yet written, handed from the log's writer to the commit thread
+    private final List<Pending> queue = new ArrayList<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private static final class Pending {
+        final long seq;
+        final Message message;
+
+        Pending(long seq, Message message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    public Journal(Path dir, int segmentBytes, int maxSegments, Fsync fsync, long groupCommitMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.fsync = fsync;
+        this.committer = fsync == Fsync.GROUP
+                ? COMMITTER.scheduleWithFixedDelay(this::commit, groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS)
+                : null;
+        OPEN.add(this);
+    }
+
+    public static Journal fromSystemProperties(Path dir) {
+        return new Journal(dir,
+                Math.max(1 << 20, Integer.getInteger("chat.journal.segmentBytes", 64 << 20)),
+                Integer.getInteger("chat.journal.maxSegments", 0),
+                Fsync.valueOf(System.getProperty("chat.journal.fsync", "group").toUpperCase(Locale.ROOT)),
+                Long.getLong("chat.journal.groupCommitMillis", 10));
+    }
+
+    // Rebuilds the given (empty) log from the segment files and positions the writer after the last valid record.
+    // Must run before the journal is registered as a listener. Returns the number of records replayed.
+    public synchronized long attach(MessageLog log) throws IOException {
+        this.log = log;
+        Files.createDirectories(dir);
+        List<Path> segments = segments();
+        long replayed = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                replayed += scan(buffer, path);
+                if (last) current = buffer;
+            }
+        }
+        return replayed;
+    }
+
+    private long scan(MappedByteBuffer buffer, Path path) {
+        long count = 0;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length == 0) break;
+            if (length < 0 || length > buffer.limit() - start - HEADER_BYTES || buffer.getInt(start + 4) != checksum(buffer, start + 8, length + 16)) {
+                // A torn write at the tail after a crash; anything past it in this segment is discarded
+                System.out.println("Journal " + path.getFileName() + ": stopping at damaged record at offset " + start);
+                break;
+            }
+            long seq = buffer.getLong(start + 8);
+            long time = buffer.getLong(start + 16);
+            byte[] payload = new byte[length];
+            buffer.get(start + HEADER_BYTES, payload);
+            // Records lost to a failed roll leave a gap; the log keeps what came before it as well as after
+            if (seq > log.next()) log.skipTo(seq);
+            if (seq == log.next()) {
+                log.append(restore(payload, time));
+                count++;
+            }
+            buffer.position(start + HEADER_BYTES + length);
+        }
+        return count;
+    }
+
+    private static Message restore(byte[] payload, long time) {
+        for (int i = 0; i < payload.length; i++) {
+            if (payload[i] == 0) {
+                return Message.restore(User.of(new String(payload, 0, i, StandardCharsets.UTF_8)),
+                        Arrays.copyOfRange(payload, i + 1, payload.length), time);
+            }
+        }
+        String legacy = new String(payload, StandardCharsets.UTF_8);
+        int colon = legacy.indexOf(": ");
+        return colon < 0 ? Message.restore("", legacy, time) : Message.restore(legacy.substring(0, colon), legacy.substring(colon + 2), time);
+    }
+
+    private synchronized int checksum(ByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void appended(long from, long to) {
+        synchronized (queue) {
+            log.read(from, to, (seq, message) -> queue.add(new Pending(seq, message)));
+        }
+        if (scheduled.compareAndSet(false, true)) COMMITTER.execute(this::drain);
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        // A batch is forced once, after all of its records are in place
+        if (fsync == Fsync.ALWAYS) commit();
+        else flush();
+    }
+
+    // Writes everything queued so far into the mapping
+    private synchronized void flush() {
+        List<Pending> pending;
+        synchronized (queue) {
+            if (queue.isEmpty()) return;
+            pending = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for (Pending record : pending) write(record.seq, record.message);
+    }
+
+    private void write(long seq, Message message) {
+        byte[] user = message.user.utf8;
+        byte[] text = message.text;
+        int length = user.length + 1 + text.length;
+        int size = HEADER_BYTES + length;
+        try {
+            // Keep room for the zero length that terminates the segment
+            if (current == null || current.remaining() < size + 4) roll(seq, size + 4);
+        } catch (IOException e) {
+            System.out.println("Journal: cannot open a new segment, message " + seq + " is not durable: " + e.getMessage());
+            return;
+        }
+        int start = current.position();
+        current.putLong(start + 8, seq);
+        current.putLong(start + 16, message.time);
+        current.put(start + HEADER_BYTES, user);
+        current.put(start + HEADER_BYTES + user.length, (byte) 0);
+        current.put(start + HEADER_BYTES + user.length + 1, text);
+        current.putInt(start + 4, checksum(current, start + 8, length + 16));
+        // The length goes in last so a half-written record never looks complete
+        current.putInt(start, length);
+        current.position(start + size);
+        dirty = true;
+    }
+
+    private void roll(long firstSeq, int needed) throws IOException {
+        if (needed > segmentBytes) throw new IOException("record of " + needed + " bytes exceeds the segment size");
+        if (current != null && fsync != Fsync.OS) current.force();
+        Files.createDirectories(dir);
+        Path path = dir.resolve(String.format("%s%020d%s", PREFIX, firstSeq, SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            current = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        if (maxSegments > 0) {
+            List<Path> segments = segments();
+            for (int i = 0; i < segments.size() - maxSegments; i++) Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) segments.add(path);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    // Writes and commits what was queued and stops the group commits; the journal must no longer be a listener
+    public void close() {
+        if (committer != null) committer.cancel(false);
+        OPEN.remove(this);
+        commit();
+    }
+
+    // Runs on the commit thread (or at close and shutdown), never under the log's monitor
+    private void commit() {
+        flush();
+        MappedByteBuffer buffer = current;
+        if (!dirty || buffer == null) return;
+        dirty = false;
+        buffer.force();
+    }
+}
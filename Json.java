@@ -0,0 +1,98 @@
+package javaChat;
+import java.util.*;
+
+// Minimal JSON helpers for the hand-built responses
+public final class Json {
+    private Json() {}
+
+    // Quotes a string as a JSON string literal, escaping everything RFC 8259 requires
+    public static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        appendQuoted(sb, s);
+        return sb.toString();
+    }
+
+    public static void appendQuoted(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    // U+2028/2029 are valid JSON but break JavaScript string literals in older engines
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    // Parses a JSON array of strings, e.g. ["a","b\n"]; throws IllegalArgumentException on anything else
+    public static List<String> parseStringArray(String json) {
+        List<String> values = new ArrayList<>();
+        int i = skipSpace(json, 0);
+        if (i >= json.length() || json.charAt(i) != '[') throw new IllegalArgumentException("Expected a JSON array");
+        i = skipSpace(json, i + 1);
+        if (i < json.length() && json.charAt(i) == ']') return values;
+        while (true) {
+            if (i >= json.length() || json.charAt(i) != '"') throw new IllegalArgumentException("Expected a string at " + i);
+            StringBuilder value = new StringBuilder();
+            i = readString(json, i + 1, value);
+            values.add(value.toString());
+            i = skipSpace(json, i);
+            if (i < json.length() && json.charAt(i) == ',') {
+                i = skipSpace(json, i + 1);
+            } else if (i < json.length() && json.charAt(i) == ']') {
+                if (skipSpace(json, i + 1) != json.length()) throw new IllegalArgumentException("Trailing data after array");
+                return values;
+            } else {
+                throw new IllegalArgumentException("Expected , or ] at " + i);
+            }
+        }
+    }
+
+    // Reads the body of a string literal starting after the opening quote; returns the index after the closing one
+    static int readString(String json, int i, StringBuilder out) {
+        while (i < json.length()) {
+            char c = json.charAt(i++);
+            if (c == '"') return i;
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (i >= json.length()) break;
+            char e = json.charAt(i++);
+            switch (e) {
+                case '"': case '\\': case '/': out.append(e); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    if (i + 4 > json.length()) throw new IllegalArgumentException("Bad escape");
+                    try {
+                        out.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("Bad escape");
+                    }
+                    i += 4;
+                    break;
+                default: throw new IllegalArgumentException("Bad escape");
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static int skipSpace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+        return i;
+    }
+}
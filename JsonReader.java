@@ -0,0 +1,143 @@
+package javaChat;
+import java.io.*;
+import java.util.Arrays;
+
+// Pull parser for JSON read straight off a response stream, without buffering the whole body as a String.
+// UTF-8 is decoded by hand into one reused char buffer, so the only allocation per string value is the
+// String itself. Just enough JSON for the server's responses: objects, arrays, strings, integers, literals.
+public class JsonReader implements Closeable {
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int pos;
+    private int limit;
+    private char[] chars = new char[256];
+
+    public JsonReader(InputStream in) {
+        this.in = in;
+    }
+
+    public void beginObject() throws IOException { expect('{'); }
+    public void endObject() throws IOException { expect('}'); }
+    public void beginArray() throws IOException { expect('['); }
+    public void endArray() throws IOException { expect(']'); }
+
+    // True if another element or member follows in the current array or object; consumes the separating comma
+    public boolean hasNext() throws IOException {
+        int c = peek();
+        if (c == ',') {
+            pos++;
+            c = peek();
+        }
+        return c != ']' && c != '}' && c != -1;
+    }
+
+    public String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    public String nextString() throws IOException {
+        expect('"');
+        int length = 0;
+        while (true) {
+            int b = read();
+            if (b == '"') return new String(chars, 0, length);
+            if (length + 2 > chars.length) chars = Arrays.copyOf(chars, chars.length * 2);
+            if (b == '\\') {
+                int e = read();
+                switch (e) {
+                    case 'n': chars[length++] = '\n'; break;
+                    case 'r': chars[length++] = '\r'; break;
+                    case 't': chars[length++] = '\t'; break;
+                    case 'b': chars[length++] = '\b'; break;
+                    case 'f': chars[length++] = '\f'; break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) code = (code << 4) | Character.digit(read(), 16);
+                        chars[length++] = (char) code;
+                        break;
+                    default: chars[length++] = (char) e;
+                }
+            } else if (b < 0x80) {
+                chars[length++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[length++] = (char) (((b & 0x1F) << 6) | (read() & 0x3F));
+            } else if (b < 0xF0) {
+                chars[length++] = (char) (((b & 0x0F) << 12) | ((read() & 0x3F) << 6) | (read() & 0x3F));
+            } else {
+                int code = ((b & 0x07) << 18) | ((read() & 0x3F) << 12) | ((read() & 0x3F) << 6) | (read() & 0x3F);
+                chars[length++] = Character.highSurrogate(code);
+                chars[length++] = Character.lowSurrogate(code);
+            }
+        }
+    }
+
+    public long nextLong() throws IOException {
+        int c = peek();
+        boolean negative = c == '-';
+        if (negative) pos++;
+        long value = 0;
+        int digits = 0;
+        while ((c = peekRaw()) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            pos++;
+            digits++;
+        }
+        if (digits == 0) throw new IOException("Expected a number");
+        return negative ? -value : value;
+    }
+
+    public void skipValue() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            nextString();
+        } else if (c == '{' || c == '[') {
+            pos++;
+            while (hasNext()) {
+                if (c == '{') nextName();
+                skipValue();
+            }
+            expect(c == '{' ? '}' : ']');
+        } else {
+            // Number or literal: everything up to the next delimiter
+            while ((c = peekRaw()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) pos++;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peek();
+        if (c != expected) throw new IOException("Expected '" + expected + "' but found " + (c == -1 ? "end of input" : "'" + (char) c + "'"));
+        pos++;
+    }
+
+    // Next byte after whitespace, not consumed
+    private int peek() throws IOException {
+        int c;
+        while ((c = peekRaw()) == ' ' || c == '\n' || c == '\r' || c == '\t') pos++;
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buffer[pos] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) throw new EOFException("Unterminated string");
+        return buffer[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+package javaChat;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Buffered JSON output straight to a response stream. Message text is kept as raw UTF-8, so string values
+// are escaped byte by byte while they are copied; every byte that needs escaping is ASCII, apart from
+// U+2028/2029 (E2 80 A8/A9), which older JavaScript engines reject inside string literals.
+// It is an OutputStream too, so binary responses share its buffering. Response writers take their buffer
+// from a small pool and hand it back on close, so a burst of reconnecting clients does not allocate one each.
+public class JsonWriter extends OutputStream {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final int POOLED_SIZE = 8192;
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(64);
+
+    private final OutputStream out;
+    private final boolean pooled;
+    private byte[] buffer;
+    private int pos;
+
+    public JsonWriter(OutputStream out) {
+        byte[] buffer = POOL.poll();
+        this.out = out;
+        this.buffer = buffer != null ? buffer : new byte[POOLED_SIZE];
+        this.pooled = true;
+    }
+
+    public JsonWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+        this.pooled = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == buffer.length) flushBuffer();
+        buffer[pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        raw(bytes, offset, length);
+    }
+
+    public JsonWriter raw(byte[] bytes) throws IOException {
+        return raw(bytes, 0, bytes.length);
+    }
+
+    public JsonWriter raw(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.length - pos) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(bytes, offset, length);
+                return this;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, pos, length);
+        pos += length;
+        return this;
+    }
+
+    public JsonWriter raw(char c) throws IOException {
+        if (pos == buffer.length) flushBuffer();
+        buffer[pos++] = (byte) c;
+        return this;
+    }
+
+    public JsonWriter number(long value) throws IOException {
+        if (buffer.length - pos < 20) flushBuffer();
+        if (value < 0) {
+            buffer[pos++] = '-';
+            if (value == Long.MIN_VALUE) return raw("9223372036854775808".getBytes());
+            value = -value;
+        }
+        int digits = digits(value);
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        pos += digits;
+        return this;
+    }
+
+    // A string literal from UTF-8 bytes
+    public JsonWriter string(byte[] utf8, int offset, int length) throws IOException {
+        raw('"');
+        escaped(utf8, offset, length);
+        return raw('"');
+    }
+
+    // As above, given the literal's length from stringLength: text that needs no escaping is copied as it is
+    public JsonWriter string(byte[] utf8, int offset, int length, int literalLength) throws IOException {
+        if (literalLength != length + 2) return string(utf8, offset, length);
+        return raw('"').raw(utf8, offset, length).raw('"');
+    }
+
+    // A string literal from UTF-8 bytes held in a (possibly direct) buffer, copied out a piece at a time
+    public JsonWriter string(ByteBuffer utf8, int offset, int length, int literalLength) throws IOException {
+        if (literalLength != length + 2) return string(utf8, offset, length);
+        raw('"');
+        for (int done = 0; done < length; ) {
+            if (pos == buffer.length) flushBuffer();
+            int n = Math.min(buffer.length - pos, length - done);
+            utf8.get(offset + done, buffer, pos, n);
+            pos += n;
+            done += n;
+        }
+        return raw('"');
+    }
+
+    public JsonWriter string(ByteBuffer utf8, int offset, int length) throws IOException {
+        raw('"');
+        byte[] copy = new byte[Math.min(length, 4096)];
+        for (int done = 0; done < length; ) {
+            int n = Math.min(copy.length, length - done);
+            // Pieces end on character boundaries, so no escapable sequence is split
+            while (n < length - done && (utf8.get(offset + done + n) & 0xC0) == 0x80) n--;
+            utf8.get(offset + done, copy, 0, n);
+            escaped(copy, 0, n);
+            done += n;
+        }
+        return raw('"');
+    }
+
+    private void escaped(byte[] utf8, int offset, int length) throws IOException {
+        int end = offset + length;
+        int run = offset;
+        for (int i = offset; i < end; i++) {
+            int b = utf8[i] & 0xFF;
+            if (b >= 0x20 && b != '"' && b != '\\' && !(b == 0xE2 && separator(utf8, i, end))) continue;
+            raw(utf8, run, i - run);
+            i = escape(utf8, i);
+            run = i + 1;
+        }
+        raw(utf8, run, end - run);
+    }
+
+    private static boolean separator(byte[] utf8, int i, int end) {
+        return i + 2 < end && utf8[i + 1] == (byte) 0x80 && (utf8[i + 2] == (byte) 0xA8 || utf8[i + 2] == (byte) 0xA9);
+    }
+
+    // Writes the escape for the character at i; returns the index of its last byte
+    private int escape(byte[] utf8, int i) throws IOException {
+        int b = utf8[i] & 0xFF;
+        switch (b) {
+            case '"': raw('\\').raw('"'); return i;
+            case '\\': raw('\\').raw('\\'); return i;
+            case '\n': raw('\\').raw('n'); return i;
+            case '\r': raw('\\').raw('r'); return i;
+            case '\t': raw('\\').raw('t'); return i;
+            case 0xE2:
+                unicode(utf8[i + 2] == (byte) 0xA8 ? 0x2028 : 0x2029);
+                return i + 2;
+            default:
+                unicode(b);
+                return i;
+        }
+    }
+
+    private void unicode(int c) throws IOException {
+        raw('\\').raw('u').raw((char) HEX[(c >> 12) & 0xF]).raw((char) HEX[(c >> 8) & 0xF])
+                .raw((char) HEX[(c >> 4) & 0xF]).raw((char) HEX[c & 0xF]);
+    }
+
+    // Length of the string literal string() writes for these bytes, quotes included
+    public static int stringLength(byte[] utf8) {
+        int length = utf8.length + 2;
+        for (int i = 0; i < utf8.length; i++) {
+            int b = utf8[i] & 0xFF;
+            if (b == '"' || b == '\\' || b == '\n' || b == '\r' || b == '\t') {
+                length++;
+            } else if (b < 0x20) {
+                length += 5;
+            } else if (b == 0xE2 && separator(utf8, i, utf8.length)) {
+                length += 3;
+                i += 2;
+            }
+        }
+        return length;
+    }
+
+    static int digits(long value) {
+        if (value < 0) return value == Long.MIN_VALUE ? 20 : 1 + digits(-value);
+        int digits = 1;
+        for (long limit = 10; value >= limit && digits < 19; limit *= 10) digits++;
+        return digits;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) out.write(buffer, 0, pos);
+        pos = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) return;
+        try {
+            flushBuffer();
+            out.close();
+        } finally {
+            if (pooled) POOL.offer(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package javaChat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless workload for ChatHttpClient --load: many simulated users, each long-polling its room and sending
+// at a fixed rate, all on one asynchronous HttpClient. Every message carries its send time, so each delivery
+// to each poller gives an end-to-end latency sample. Prints throughput and latency percentiles at the end.
+// Run the server with the rate limits off (-Dchat.limit.<name>.perSecond=0), or most sends will get 429.
+public class LoadGenerator {
+    private final String server;
+    private final int users;
+    private final int rooms;
+    private final double rate;
+    private final long durationMillis;
+    private final long rampMillis;
+    private final String marker = "load-" + Long.toHexString(System.nanoTime() & 0xFFFFFF) + " ";
+
+    private final HttpClient client;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean sending = new AtomicBoolean(true);
+    private final AtomicBoolean polling = new AtomicBoolean(true);
+
+    // Microseconds, 32 buckets per power of two (about 3% resolution), up to 2^30 us
+    private final Metrics.Histogram sendLatency = new Metrics.Histogram(5, 30);
+    private final Metrics.Histogram deliveryLatency = new Metrics.Histogram(5, 30);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder pollErrors = new LongAdder();
+
+    LoadGenerator(String server, int users, int rooms, double rate, long durationMillis, long rampMillis) {
+        this.server = server;
+        this.users = users;
+        this.rooms = Math.max(1, rooms);
+        this.rate = rate;
+        this.durationMillis = durationMillis;
+        this.rampMillis = rampMillis;
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory daemon = r -> {
+            Thread t = new Thread(r, "load-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemon)).build();
+        this.scheduler = Executors.newScheduledThreadPool(2, daemon);
+    }
+
+    // --users=100 --rooms=1 --rate=1 (messages per second per user) --duration=30 --ramp=5 (seconds)
+    static LoadGenerator fromArgs(String server, String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 0) options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return new LoadGenerator(server,
+                Integer.parseInt(options.getOrDefault("users", "100")),
+                Integer.parseInt(options.getOrDefault("rooms", "1")),
+                Double.parseDouble(options.getOrDefault("rate", "1")),
+                (long) (Double.parseDouble(options.getOrDefault("duration", "30")) * 1000),
+                (long) (Double.parseDouble(options.getOrDefault("ramp", "5")) * 1000));
+    }
+
+    void run() throws Exception {
+        System.out.printf("Load: %d users in %d room(s), %.2f msg/s each, %d s against %s%n",
+                users, rooms, rate, durationMillis / 1000, server);
+        Map<String, Long> start = new HashMap<>();
+        for (int r = 0; r < rooms; r++) start.put(room(r), currentNext(room(r)));
+        long periodMicros = rate > 0 ? (long) (1_000_000 / rate) : 0;
+        Random random = new Random();
+        for (int u = 0; u < users; u++) {
+            String user = "load" + u;
+            String room = room(u % rooms);
+            long delay = rampMillis * u / Math.max(1, users);
+            scheduler.schedule(() -> poll(user, room, start.get(room)), delay, TimeUnit.MILLISECONDS);
+            if (periodMicros > 0) {
+                // Spread first sends over one period so users do not fire in lockstep
+                long first = delay * 1000 + (long) (random.nextDouble() * periodMicros);
+                scheduler.scheduleAtFixedRate(() -> send(user, room), first, periodMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        long began = System.nanoTime();
+        Thread.sleep(rampMillis + durationMillis);
+        sending.set(false);
+        double seconds = (System.nanoTime() - began) / 1e9;
+        // Let in-flight messages reach the pollers
+        Thread.sleep(2000);
+        polling.set(false);
+        scheduler.shutdownNow();
+        report(seconds);
+    }
+
+    private String room(int index) {
+        return rooms == 1 ? "load" : "load" + index;
+    }
+
+    private long currentNext(String room) throws Exception {
+        HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(URI.create(server + "/messages?room=" + room
+                + "&since=" + Long.MAX_VALUE)).build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (JsonReader json = new JsonReader(response.body())) {
+            if (response.statusCode() != 200) return 0;
+            json.beginObject();
+            while (json.hasNext()) {
+                if (json.nextName().equals("next")) return json.nextLong();
+                json.skipValue();
+            }
+        }
+        return 0;
+    }
+
+    private void send(String user, String room) {
+        if (!sending.get()) return;
+        long sentAt = System.nanoTime();
+        String text = marker + sentAt;
+        HttpRequest request = HttpRequest.newBuilder(URI.create(server + "/send?room=" + room + "&user=" + user
+                + "&msg=" + URLEncoder.encode(text, StandardCharsets.UTF_8))).POST(HttpRequest.BodyPublishers.noBody()).build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            if (error != null) {
+                failed.increment();
+            } else if (response.statusCode() == 200) {
+                sent.increment();
+                sendLatency.record((System.nanoTime() - sentAt) / 1000);
+            } else {
+                refused.increment();
+            }
+        });
+    }
+
+    private void poll(String user, String room, long since) {
+        if (!polling.get()) return;
+        HttpRequest request = HttpRequest.newBuilder(URI.create(server + "/messages?room=" + room + "&since=" + since
+                + "&wait=25000&user=" + user)).timeout(Duration.ofSeconds(40)).build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, error) -> {
+            if (error != null || response.statusCode() != 200) {
+                pollErrors.increment();
+                if (polling.get()) scheduler.schedule(() -> poll(user, room, since), 1, TimeUnit.SECONDS);
+                return;
+            }
+            long now = System.nanoTime();
+            long next = since;
+            try (JsonReader json = new JsonReader(new ByteArrayInputStream(response.body()))) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    if (name.equals("messages")) {
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            json.beginObject();
+                            while (json.hasNext()) {
+                                if (json.nextName().equals("text")) record(json.nextString(), now);
+                                else json.skipValue();
+                            }
+                            json.endObject();
+                        }
+                        json.endArray();
+                    } else if (name.equals("next")) {
+                        next = json.nextLong();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+            } catch (IOException e) {
+                pollErrors.increment();
+            }
+            poll(user, room, next);
+        });
+    }
+
+    private void record(String message, long now) {
+        int at = message.indexOf(marker);
+        if (at < 0) return;
+        delivered.increment();
+        deliveryLatency.record((now - Long.parseLong(message.substring(at + marker.length()))) / 1000);
+    }
+
+    private void report(double seconds) {
+        System.out.printf("Sent:      %d ok, %d refused (429/503), %d failed; %.1f msg/s%n",
+                sent.sum(), refused.sum(), failed.sum(), sent.sum() / seconds);
+        System.out.printf("Delivered: %d to pollers, %.1f deliveries/s, %d poll errors%n",
+                delivered.sum(), delivered.sum() / seconds, pollErrors.sum());
+        System.out.println("Send latency     " + percentiles(sendLatency));
+        System.out.println("Delivery latency " + percentiles(deliveryLatency));
+        if (refused.sum() > 0) System.out.println("Some sends were refused; run the server with -Dchat.limit.send.*.perSecond=0");
+    }
+
+    private static String percentiles(Metrics.Histogram histogram) {
+        return String.format("p50 %s  p99 %s  p999 %s  max %s", millis(histogram.percentile(0.5)),
+                millis(histogram.percentile(0.99)), millis(histogram.percentile(0.999)), millis(histogram.percentile(1)));
+    }
+
+    private static String millis(long micros) {
+        return micros == Long.MAX_VALUE ? ">1000s" : String.format("%.2fms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,99 @@
+package javaChat;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Parks /messages requests that have nothing to return yet.
+// A parked exchange is just an entry in a set: the handler thread returns immediately and the
+// response is written later, either when the log grows past the waiter's "since" or when its wait expires.
+// The shared timer thread only fires timeouts. Responses are written on the server executor, each waiter
+// as its own task, so a client that is slow to read holds up neither the timer nor other waiters.
+public class LongPoll implements MessageLog.Listener {
+    public interface Responder {
+        void respond(HttpExchange exchange, MessageLog log, long since) throws IOException;
+    }
+
+    private static final class Waiter {
+        final HttpExchange exchange;
+        final long since;
+        final AtomicBoolean done = new AtomicBoolean();
+        volatile ScheduledFuture<?> timeout;
+
+        Waiter(HttpExchange exchange, long since) {
+            this.exchange = exchange;
+            this.since = since;
+        }
+    }
+
+    private final MessageLog log;
+    private final Responder responder;
+    private final Executor completer;
+    private final long maxWaitMillis;
+    private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean drainPending = new AtomicBoolean();
+    // Shared by every room's LongPoll
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-longpoll");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LongPoll(MessageLog log, Responder responder, Executor completer, long maxWaitMillis) {
+        this.log = log;
+        this.responder = responder;
+        this.completer = completer;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public void park(HttpExchange exchange, long since, long waitMillis) throws IOException {
+        // A cursor ahead of the log (e.g. after a server restart) is answered right away so the client resyncs
+        if (log.next() != since) {
+            responder.respond(exchange, log, since);
+            return;
+        }
+        Waiter waiter = new Waiter(exchange, since);
+        waiters.add(waiter);
+        waiter.timeout = TIMER.schedule(() -> completer.execute(() -> complete(waiter)), Math.min(waitMillis, maxWaitMillis), TimeUnit.MILLISECONDS);
+        // An append may have slipped in between the check above and registering
+        if (log.next() > since) signal();
+    }
+
+    public int parked() {
+        return waiters.size();
+    }
+
+    @Override
+    public void appended(long from, long to) {
+        signal();
+    }
+
+    private void signal() {
+        if (drainPending.compareAndSet(false, true)) completer.execute(this::drain);
+    }
+
+    private void drain() {
+        drainPending.set(false);
+        long next = log.next();
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (waiter.done.get() || waiter.since < next) {
+                it.remove();
+                ScheduledFuture<?> timeout = waiter.timeout;
+                if (timeout != null) timeout.cancel(false);
+                completer.execute(() -> complete(waiter));
+            }
+        }
+    }
+
+    private void complete(Waiter waiter) {
+        if (!waiter.done.compareAndSet(false, true)) return;
+        waiters.remove(waiter);
+        try {
+            responder.respond(waiter.exchange, log, waiter.since);
+        } catch (IOException e) {
+            waiter.exchange.close();
+        }
+    }
+}
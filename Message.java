@@ -0,0 +1,76 @@
+package javaChat;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// A chat message as stored in the log: an interned author, the server's timestamp and the text as UTF-8.
+// The text is encoded once, at append time; responses escape it while copying, and the length of its JSON
+// literal is computed up front so responses know their size before writing.
+// On the wire a message is {"user":<name>,"time":<millis>,"text":<text>}.
+public final class Message {
+    static final byte[] TEXT_KEY = ",\"text\":".getBytes(StandardCharsets.UTF_8);
+
+    final User user;
+    final long time;
+    final byte[] text;
+    final int textJsonLength;
+
+    private Message(User user, long time, byte[] text, int textJsonLength) {
+        this.user = user;
+        this.time = time;
+        this.text = text;
+        this.textJsonLength = textJsonLength;
+    }
+
+    public static Message of(String user, String text) {
+        return restore(user, text, System.currentTimeMillis());
+    }
+
+    // Recreates a message read back from the journal or a replica stream, keeping its original timestamp
+    public static Message restore(String user, String text, long time) {
+        return restore(User.of(user), text.getBytes(StandardCharsets.UTF_8), time);
+    }
+
+    static Message restore(User user, byte[] text, long time) {
+        return new Message(user, time, text, JsonWriter.stringLength(text));
+    }
+
+    static Message restore(User user, byte[] text, long time, int textJsonLength) {
+        return new Message(user, time, text, textJsonLength);
+    }
+
+    // Size of the JSON object for a message with the given author, time and text literal length
+    static long jsonLength(User user, long time, int textJsonLength) {
+        return user.jsonPrefix.length + JsonWriter.digits(time) + TEXT_KEY.length + textJsonLength + 1;
+    }
+
+    long jsonLength() {
+        return jsonLength(user, time, textJsonLength);
+    }
+
+    void writeJson(JsonWriter out) throws IOException {
+        out.raw(user.jsonPrefix).number(time).raw(TEXT_KEY).string(text, 0, text.length, textJsonLength).raw('}');
+    }
+
+    // The JSON object on its own, for pushes that frame each message separately
+    byte[] json() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) jsonLength());
+        try (JsonWriter out = new JsonWriter(bytes, 256)) {
+            writeJson(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public String user() {
+        return user.name;
+    }
+
+    public String text() {
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    public long time() {
+        return time;
+    }
+}
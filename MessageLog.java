@@ -0,0 +1,418 @@
+package javaChat;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Append-only chat history made of fixed-size segments.
+// A single writer appends under the log's monitor; readers never lock. Every entry gets a
+// monotonically increasing sequence number, which is what clients pass back as "since".
+// Whole segments are dropped from the head once any retention limit (count, bytes, age) is exceeded.
+// Only the newest hotSegments segments keep their Message objects. A background thread compresses older,
+// full (and so immutable) segments, and reads of them decompress through a small LRU shared by all logs.
+// Retention counts a compressed segment at its compressed size.
+// In off-heap mode segments hold no Message objects at all: each message's text goes into direct-buffer
+// chunks owned by its segment, located through primitive arrays, so history adds almost nothing for the
+// garbage collector to trace. Readers get a Message rebuilt on the fly, or the stored bytes via readRaw.
+// Off-heap segments are not compressed.
+public class MessageLog {
+    static final int SEGMENT_SHIFT = 10;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    // Longest gap skipTo keeps as holes rather than starting the log afresh
+    static final int MAX_HOLE = 64 * SEGMENT_SIZE;
+
+    public interface Visitor {
+        void visit(long seq, Message message);
+    }
+
+    // Receives each message's parts where they are stored; the bytes must not be modified
+    public interface RawVisitor {
+        void visit(long seq, User user, long time, byte[] text, int textJsonLength);
+
+        // Off-heap mode: the text is bytes [offset, offset + length) of a chunk
+        void visit(long seq, User user, long time, ByteBuffer chunk, int offset, int length, int textJsonLength);
+    }
+
+    // Called by the writer, still holding the log's monitor, after entries [from, to) became readable.
+    // Implementations must only hand work off, never block.
+    public interface Listener {
+        void appended(long from, long to);
+    }
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-log-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Decompressed cold segments, least recently read first
+    private static final int CACHE_SEGMENTS = Math.max(1, Integer.getInteger("chat.history.cacheSegments", 16));
+    private static final Map<Segment, Message[]> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Segment, Message[]> eldest) {
+            return size() > CACHE_SEGMENTS;
+        }
+    };
+    static final LongAdder coldLoads = new LongAdder();
+
+    private static final int CHUNK_BYTES = Math.max(4096, Integer.getInteger("chat.history.chunkBytes", 64 * 1024));
+
+    private static final class Segment {
+        final long base;
+        // Set to null once compressed; "compressed" is published first
+        volatile Message[] entries;
+        volatile byte[] compressed;
+        // Off-heap: the text of entry i is lengths[i] bytes at offset (int) locations[i] of
+        // chunks[(int) (locations[i] >>> 32)]
+        volatile ByteBuffer[] chunks;
+        final long[] locations;
+        final int[] lengths;
+        final int[] jsonLengths;
+        final int[] users;
+        final long[] times;
+        // Off-heap and compressed entries hold only user ids; this keeps their users interned
+        Set<User> authors;
+        long bytes;
+        long lastAppend;
+
+        Segment(long base, boolean offHeap) {
+            this.base = base;
+            if (offHeap) {
+                chunks = new ByteBuffer[0];
+                locations = new long[SEGMENT_SIZE];
+                lengths = new int[SEGMENT_SIZE];
+                jsonLengths = new int[SEGMENT_SIZE];
+                users = new int[SEGMENT_SIZE];
+                times = new long[SEGMENT_SIZE];
+                authors = new HashSet<>();
+            } else {
+                entries = new Message[SEGMENT_SIZE];
+                locations = null;
+                lengths = null;
+                jsonLengths = null;
+                users = null;
+                times = null;
+            }
+        }
+
+        // Writer only; a new chunk is published before the entry that uses it
+        void put(int i, Message message) {
+            byte[] text = message.text;
+            ByteBuffer[] current = chunks;
+            ByteBuffer chunk = current.length == 0 ? null : current[current.length - 1];
+            if (chunk == null || chunk.remaining() < text.length) {
+                chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_BYTES, text.length));
+                ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+                grown[current.length] = chunk;
+                chunks = grown;
+                current = grown;
+            }
+            int offset = chunk.position();
+            chunk.put(text);
+            locations[i] = ((long) (current.length - 1) << 32) | offset;
+            lengths[i] = text.length;
+            jsonLengths[i] = message.textJsonLength;
+            users[i] = message.user.id;
+            authors.add(message.user);
+            times[i] = message.time;
+        }
+
+        Message get(int i) {
+            byte[] text = new byte[lengths[i]];
+            chunks[(int) (locations[i] >>> 32)].get((int) locations[i], text);
+            return Message.restore(User.byId(users[i]), text, times[i], jsonLengths[i]);
+        }
+    }
+
+    private final long maxCount;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int hotSegments;
+    private final boolean offHeap;
+    private final AtomicBoolean compactPending = new AtomicBoolean();
+
+    // Readers snapshot "next" first, then "segments"; entries below the snapshot are safely published
+    private volatile Segment[] segments;
+    private volatile long next;
+    private long retainedBytes;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public MessageLog(long maxCount, long maxBytes, long maxAgeMillis) {
+        this(maxCount, maxBytes, maxAgeMillis, 0, false);
+    }
+
+    // hotSegments of 0 keeps every segment uncompressed
+    public MessageLog(long maxCount, long maxBytes, long maxAgeMillis, int hotSegments, boolean offHeap) {
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.hotSegments = offHeap ? 0 : hotSegments;
+        this.offHeap = offHeap;
+        this.segments = new Segment[] { new Segment(0, offHeap) };
+    }
+
+    // Retention limits from system properties; 0 means unlimited
+    public static MessageLog fromSystemProperties() {
+        return new MessageLog(
+                Long.getLong("chat.retention.count", 100_000),
+                Long.getLong("chat.retention.bytes", 64L * 1024 * 1024),
+                Long.getLong("chat.retention.ageMinutes", 0) * 60_000,
+                Integer.getInteger("chat.history.hotSegments", 8),
+                Boolean.getBoolean("chat.history.offHeap"));
+    }
+
+    public synchronized long append(Message message) {
+        long seq = next;
+        store(seq, message);
+        next = seq + 1;
+        for (Listener listener : listeners) listener.appended(seq, seq + 1);
+        return seq;
+    }
+
+    // Appends a batch under one acquisition of the monitor; readers see it appear at once and listeners
+    // are called once for the whole range. Returns the sequence number of the first message.
+    public synchronized long appendAll(List<Message> batch) {
+        long first = next;
+        long seq = first;
+        for (Message message : batch) store(seq++, message);
+        next = seq;
+        if (seq > first) {
+            for (Listener listener : listeners) listener.appended(first, seq);
+        }
+        return first;
+    }
+
+    private void store(long seq, Message message) {
+        Segment[] segs = segments;
+        Segment tail = segs[segs.length - 1];
+        if (seq - tail.base == SEGMENT_SIZE) {
+            tail = new Segment(seq, offHeap);
+            segs = Arrays.copyOf(segs, segs.length + 1);
+            segs[segs.length - 1] = tail;
+            segs = trim(segs, seq, System.currentTimeMillis());
+            segments = segs;
+            if (hotSegments > 0 && segs.length > hotSegments && compactPending.compareAndSet(false, true)) {
+                COMPACTOR.execute(this::compact);
+            }
+        }
+        if (message == null) {
+            // A hole: nothing is stored and reads pass over it
+            if (offHeap) tail.lengths[(int) (seq - tail.base)] = -1;
+            return;
+        }
+        int size = message.text.length;
+        if (offHeap) {
+            tail.put((int) (seq - tail.base), message);
+        } else {
+            tail.entries[(int) (seq - tail.base)] = message;
+        }
+        tail.bytes += size;
+        tail.lastAppend = message.time;
+        retainedBytes += size;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    // Applies the retention limits without waiting for a new segment, which a quiet log may not start for a
+    // long time. Once even the newest entry is too old, the log continues empty from next.
+    public synchronized void expire(long now) {
+        Segment[] segs = trim(segments, next, now);
+        Segment tail = segs[segs.length - 1];
+        if (segs.length == 1 && next > tail.base && maxAgeMillis > 0 && now - tail.lastAppend > maxAgeMillis) {
+            segs = new Segment[] { new Segment(next, offHeap) };
+            retainedBytes = 0;
+        }
+        segments = segs;
+    }
+
+    // Drops whole head segments, never the one being appended to
+    private Segment[] trim(Segment[] segs, long end, long now) {
+        int drop = 0;
+        while (drop < segs.length - 1) {
+            Segment head = segs[drop];
+            long count = end - segs[drop + 1].base;
+            boolean overCount = maxCount > 0 && count >= maxCount;
+            boolean overBytes = maxBytes > 0 && retainedBytes > maxBytes;
+            boolean tooOld = maxAgeMillis > 0 && now - head.lastAppend > maxAgeMillis;
+            if (!overCount && !overBytes && !tooOld) break;
+            retainedBytes -= head.bytes;
+            drop++;
+        }
+        return drop == 0 ? segs : Arrays.copyOfRange(segs, drop, segs.length);
+    }
+
+    // Runs on the compactor thread, the only one that ever compresses a segment
+    private void compact() {
+        compactPending.set(false);
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length - hotSegments; i++) {
+            Segment seg = segs[i];
+            Message[] entries = seg.entries;
+            if (entries == null) continue;
+            byte[] compressed = compress(entries);
+            synchronized (this) {
+                // Skip the accounting for a segment trimmed in the meantime
+                if (seg.base >= segments[0].base) {
+                    retainedBytes -= seg.bytes - compressed.length;
+                    seg.bytes = compressed.length;
+                }
+            }
+            Set<User> authors = new HashSet<>();
+            for (Message message : entries) {
+                if (message != null) authors.add(message.user);
+            }
+            seg.authors = authors;
+            seg.compressed = compressed;
+            seg.entries = null;
+        }
+    }
+
+    private static byte[] compress(Message[] entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * 1024);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            for (Message message : entries) {
+                if (message == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(message.user.id);
+                out.writeLong(message.time);
+                out.writeInt(message.text.length);
+                out.write(message.text);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Message[] decompress(byte[] compressed) {
+        Message[] entries = new Message[SEGMENT_SIZE];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)), 8192))) {
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                int id = in.readInt();
+                if (id < 0) continue;
+                User user = User.byId(id);
+                long time = in.readLong();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                entries[i] = Message.restore(user, text, time);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return entries;
+    }
+
+    private static Message[] entries(Segment seg) {
+        Message[] entries = seg.entries;
+        if (entries != null) return entries;
+        synchronized (CACHE) {
+            entries = CACHE.get(seg);
+        }
+        if (entries == null) {
+            // Decompressed outside the lock; two readers may both miss, which only costs time
+            entries = decompress(seg.compressed);
+            coldLoads.increment();
+            synchronized (CACHE) {
+                CACHE.put(seg, entries);
+            }
+        }
+        return entries;
+    }
+
+    // Continues the log at a later sequence number when the entries in between are gone for good, e.g. a gap
+    // in the journal, or a replica that fell behind its leader's retention. Up to MAX_HOLE missing entries
+    // become holes that reads pass over, so what is held before the gap stays; an empty log, or a longer
+    // gap, starts afresh at seq.
+    public synchronized void skipTo(long seq) {
+        if (seq <= next) return;
+        if (next == segments[0].base || seq - next > MAX_HOLE) {
+            segments = new Segment[] { new Segment(seq, offHeap) };
+            next = seq;
+            retainedBytes = 0;
+            return;
+        }
+        for (long s = next; s < seq; s++) store(s, null);
+        next = seq;
+    }
+
+    // Sequence number the next appended entry will get
+    public long next() {
+        return next;
+    }
+
+    // Oldest sequence number still retained
+    public long first() {
+        return segments[0].base;
+    }
+
+    // The entry with the given sequence number, or null if it was trimmed, not yet appended or is a hole
+    public Message get(long seq) {
+        long end = next;
+        Segment[] segs = segments;
+        if (seq < segs[0].base || seq >= end) return null;
+        Segment seg = segs[(int) ((seq - segs[0].base) >>> SEGMENT_SHIFT)];
+        int i = (int) (seq - seg.base);
+        if (offHeap) return seg.lengths[i] < 0 ? null : seg.get(i);
+        return entries(seg)[i];
+    }
+
+    // Visits entries from "since" (clamped to the retained range) up to the current end; returns the end
+    public long read(long since, Visitor visitor) {
+        return read(since, Long.MAX_VALUE, visitor);
+    }
+
+    // Visits entries in [from, to), both clamped to the retained range and skipping holes; returns the clamped end
+    public long read(long from, long to, Visitor visitor) {
+        long end = Math.min(to, next);
+        Segment[] segs = segments;
+        long seq = Math.max(from, segs[0].base);
+        while (seq < end) {
+            Segment seg = segs[(int) ((seq - segs[0].base) >>> SEGMENT_SHIFT)];
+            long segEnd = Math.min(end, seg.base + SEGMENT_SIZE);
+            if (offHeap) {
+                for (; seq < segEnd; seq++) {
+                    int i = (int) (seq - seg.base);
+                    if (seg.lengths[i] >= 0) visitor.visit(seq, seg.get(i));
+                }
+                continue;
+            }
+            Message[] entries = entries(seg);
+            for (; seq < segEnd; seq++) {
+                Message message = entries[(int) (seq - seg.base)];
+                if (message != null) visitor.visit(seq, message);
+            }
+        }
+        return end;
+    }
+
+    // Like read, but hands out each message's parts where they are stored: in off-heap mode straight out of
+    // the chunk, without building a Message
+    public long readRaw(long from, long to, RawVisitor visitor) {
+        if (!offHeap) {
+            return read(from, to, (seq, message) -> visitor.visit(seq, message.user, message.time, message.text, message.textJsonLength));
+        }
+        long end = Math.min(to, next);
+        Segment[] segs = segments;
+        long seq = Math.max(from, segs[0].base);
+        while (seq < end) {
+            Segment seg = segs[(int) ((seq - segs[0].base) >>> SEGMENT_SHIFT)];
+            ByteBuffer[] chunks = seg.chunks;
+            long segEnd = Math.min(end, seg.base + SEGMENT_SIZE);
+            for (; seq < segEnd; seq++) {
+                int i = (int) (seq - seg.base);
+                if (seg.lengths[i] < 0) continue;
+                visitor.visit(seq, User.byId(seg.users[i]), seg.times[i], chunks[(int) (seg.locations[i] >>> 32)],
+                        (int) seg.locations[i], seg.lengths[i], seg.jsonLengths[i]);
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,231 @@
+package javaChat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Request metrics per handler plus gauges, rendered in the Prometheus text format.
+// Every registered handler is wrapped: the response stream is swapped for one that counts bytes and records
+// the latency when the response is closed. Requests still unanswered when the handler returns (parked
+// long-polls) are timed to the moment they are answered, but into a histogram of their own, so the
+// request-duration percentiles stay about handling time rather than about how long clients chose to wait.
+// Streaming responses (SSE) are timed to the end of the handler, i.e. to first byte.
+// Latencies go into log-linear histograms (4 linear buckets per power of two microseconds) made of LongAdders,
+// so recording never takes a lock.
+public class Metrics {
+    // 2^subBits linear buckets per power of two; finite buckets reach 2^maxExponent, anything above only
+    // shows up in the overflow bucket
+    static final class Histogram {
+        private final int subBits;
+        private final int sub;
+        final int buckets;
+        final String[] bounds;
+        final LongAdder[] counts;
+        final LongAdder sum = new LongAdder();
+
+        Histogram(int subBits, int maxExponent) {
+            this.subBits = subBits;
+            this.sub = 1 << subBits;
+            this.buckets = (maxExponent - subBits + 1) * sub;
+            this.bounds = new String[buckets];
+            this.counts = new LongAdder[buckets + 1];
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        int index(long value) {
+            if (value < sub) return (int) Math.max(0, value);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int index = (exponent - subBits + 1) * sub + (int) ((value >>> (exponent - subBits)) & (sub - 1));
+            return Math.min(index, buckets);
+        }
+
+        // Largest value (inclusive) that falls into bucket i
+        long upper(int i) {
+            if (i < sub) return i;
+            int exponent = i / sub + subBits - 1;
+            return ((long) (sub + i % sub + 1) << (exponent - subBits)) - 1;
+        }
+
+        // Bucket bounds in seconds for values recorded in microseconds
+        String bound(int i) {
+            if (bounds[i] == null) bounds[i] = BigDecimal.valueOf(upper(i), 6).stripTrailingZeros().toPlainString();
+            return bounds[i];
+        }
+
+        void record(long value) {
+            counts[index(value)].increment();
+            sum.add(value);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder c : counts) count += c.sum();
+            return count;
+        }
+
+        // Upper bound of the bucket holding the q-th quantile (Long.MAX_VALUE if it is the overflow bucket)
+        long percentile(double q) {
+            long total = count();
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < buckets; i++) {
+                seen += counts[i].sum();
+                if (seen >= rank) return upper(i);
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static final class HandlerStats {
+        final String name;
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        // Microseconds, 4 buckets per power of two, up to 2^26 us (about 67 s)
+        final Histogram latency = new Histogram(2, 26);
+        final Histogram parkedLatency = new Histogram(2, 26);
+
+        HandlerStats(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    // Counts bytes written and records the request once, when closed or when the handler returned with a response
+    private static final class Recording extends FilterOutputStream {
+        private final HandlerStats stats;
+        private final HttpExchange exchange;
+        private final long start;
+        private final AtomicBoolean done = new AtomicBoolean();
+        volatile boolean parked;
+
+        Recording(HandlerStats stats, HttpExchange exchange, long start) {
+            super(exchange.getResponseBody());
+            this.stats = stats;
+            this.exchange = exchange;
+            this.start = start;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            stats.bytesOut.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            stats.bytesOut.add(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                finish(false);
+            }
+        }
+
+        void finish(boolean failed) {
+            if (!done.compareAndSet(false, true)) return;
+            (parked ? stats.parkedLatency : stats.latency).record((System.nanoTime() - start) / 1000);
+            if (failed || exchange.getResponseCode() >= 500) stats.errors.increment();
+        }
+    }
+
+    private final List<HandlerStats> handlers = new CopyOnWriteArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    public HttpHandler wrap(String name, HttpHandler handler) {
+        HandlerStats stats = new HandlerStats(name);
+        handlers.add(stats);
+        return exchange -> {
+            stats.requests.increment();
+            Recording recording = new Recording(stats, exchange, System.nanoTime());
+            exchange.setStreams(null, recording);
+            try {
+                handler.handle(exchange);
+            } catch (IOException | RuntimeException e) {
+                recording.finish(true);
+                throw e;
+            }
+            // Answered (or streaming) by now; a parked exchange is recorded when its response is closed
+            if (exchange.getResponseCode() != -1) recording.finish(false);
+            else recording.parked = true;
+        };
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    // A monotonically increasing value maintained elsewhere
+    public void counter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        header(out, "chat_http_requests_total", "Requests received, by handler", "counter");
+        for (HandlerStats stats : handlers) sample(out, "chat_http_requests_total", stats.name, null, stats.requests.sum());
+        header(out, "chat_http_errors_total", "Requests that failed or were answered with 5xx, by handler", "counter");
+        for (HandlerStats stats : handlers) sample(out, "chat_http_errors_total", stats.name, null, stats.errors.sum());
+        header(out, "chat_http_response_bytes_total", "Response body bytes written, by handler", "counter");
+        for (HandlerStats stats : handlers) sample(out, "chat_http_response_bytes_total", stats.name, null, stats.bytesOut.sum());
+        header(out, "chat_http_request_duration_seconds", "Time from request to response, by handler, without parked long-polls", "histogram");
+        for (HandlerStats stats : handlers) histogram(out, "chat_http_request_duration_seconds", stats.name, stats.latency);
+        header(out, "chat_http_long_poll_duration_seconds", "Time from request to response of long-polls that were parked, by handler", "histogram");
+        for (HandlerStats stats : handlers) {
+            if (stats.parkedLatency.count() > 0) histogram(out, "chat_http_long_poll_duration_seconds", stats.name, stats.parkedLatency);
+        }
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name, gauge.help, gauge.type);
+            out.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, String handler, Histogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets; i++) {
+            cumulative += histogram.counts[i].sum();
+            sample(out, name + "_bucket", handler, histogram.bound(i), cumulative);
+        }
+        cumulative += histogram.counts[histogram.buckets].sum();
+        sample(out, name + "_bucket", handler, "+Inf", cumulative);
+        out.append(name).append("_sum{handler=\"").append(handler).append("\"} ")
+                .append(BigDecimal.valueOf(histogram.sum.sum(), 6).toPlainString()).append('\n');
+        sample(out, name + "_count", handler, null, cumulative);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String handler, String le, long value) {
+        out.append(name).append("{handler=\"").append(handler).append('"');
+        if (le != null) out.append(",le=\"").append(le).append('"');
+        out.append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,222 @@
+package javaChat;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+// Who is currently active. Any activity refreshes a user's last-seen time; users not seen for ttlMillis leave.
+// Expiry runs on a hashed timing wheel: each user sits in the slot of the tick when they would expire, and each
+// tick only looks at that one slot, re-filing users that were refreshed meanwhile. Refreshing an existing user is
+// a single CAS on its last-seen time; expiry claims the entry with a CAS too, so a refresh racing the expiry
+// either keeps the user or, finding the entry expired, joins them again. The wheel only turns while someone
+// is present, so an idle room holds no timer task.
+// Joins and leaves bump a version and are kept in a bounded change log, so clients can ask for the delta since
+// the version they already have. The full list is serialized once per version and served from that copy.
+public class Presence {
+    public interface Listener {
+        void changed(String user, boolean joined);
+    }
+
+    private static final class Entry {
+        // lastSeen once the entry has expired; a refresh must then add a new entry
+        static final long EXPIRED = Long.MIN_VALUE;
+        static final AtomicLongFieldUpdater<Entry> LAST_SEEN = AtomicLongFieldUpdater.newUpdater(Entry.class, "lastSeen");
+
+        final String name;
+        volatile long lastSeen;
+
+        Entry(String name, long lastSeen) {
+            this.name = name;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private static final class Change {
+        final long version;
+        final String user;
+        final boolean joined;
+
+        Change(long version, String user, boolean joined) {
+            this.version = version;
+            this.user = user;
+            this.joined = joined;
+        }
+    }
+
+    // One thread advances the wheels of every room
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long ttlMillis;
+    private final long tickMillis;
+    private final ConcurrentHashMap<String, Entry> users = new ConcurrentHashMap<>();
+    private final List<Set<Entry>> wheel = new ArrayList<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private final int maxChanges;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long version;
+    // snapshotJson() as UTF-8, dropped on every join or leave
+    private volatile byte[] snapshot;
+    private long tick;
+    // Advances the wheel; set while anyone is present, guarded by this
+    private ScheduledFuture<?> ticker;
+
+    public Presence(long ttlMillis, long tickMillis, int maxChanges) {
+        this.ttlMillis = ttlMillis;
+        this.tickMillis = tickMillis;
+        this.maxChanges = maxChanges;
+        // One slot per tick of the TTL, so a deadline never wraps past the cursor
+        int slots = (int) (ttlMillis / tickMillis) + 3;
+        for (int i = 0; i < slots; i++) wheel.add(ConcurrentHashMap.newKeySet());
+        // Versions start at the clock so a client holding a version from before a restart gets a full snapshot
+        version = System.currentTimeMillis();
+    }
+
+    public static Presence fromSystemProperties() {
+        return new Presence(Long.getLong("chat.presence.ttlSeconds", 60) * 1000,
+                Long.getLong("chat.presence.tickMillis", 1000), 4096);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void touch(String user) {
+        long now = System.currentTimeMillis();
+        Entry entry = users.get(user);
+        if (entry != null && refresh(entry, now)) return;
+        synchronized (this) {
+            // Entries in the map are never expired while the lock is held
+            entry = users.get(user);
+            if (entry != null) {
+                refresh(entry, now);
+                return;
+            }
+            if (ticker == null) {
+                // The wheel stood still since the last user left; every slot is empty
+                tick = now / tickMillis;
+                ticker = TIMER.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+            }
+            entry = new Entry(user, now);
+            users.put(user, entry);
+            schedule(entry);
+            record(user, true);
+        }
+        for (Listener listener : listeners) listener.changed(user, true);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public long version() {
+        return version;
+    }
+
+    // False if the entry expired first
+    private static boolean refresh(Entry entry, long now) {
+        while (true) {
+            long seen = entry.lastSeen;
+            if (seen == Entry.EXPIRED) return false;
+            if (seen >= now || Entry.LAST_SEEN.compareAndSet(entry, seen, now)) return true;
+        }
+    }
+
+    private void schedule(Entry entry) {
+        long deadline = (entry.lastSeen + ttlMillis) / tickMillis + 1;
+        wheel.get((int) (deadline % wheel.size())).add(entry);
+    }
+
+    private void record(String user, boolean joined) {
+        snapshot = null;
+        version++;
+        changes.addLast(new Change(version, user, joined));
+        if (changes.size() > maxChanges) changes.removeFirst();
+    }
+
+    // Catches the cursor up to the clock, expiring or re-filing everyone in each passed slot
+    private void advance() {
+        long now = System.currentTimeMillis();
+        long target = now / tickMillis;
+        List<String> left = new ArrayList<>();
+        while (tick < target) {
+            tick++;
+            Set<Entry> slot = wheel.get((int) (tick % wheel.size()));
+            for (Iterator<Entry> it = slot.iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                it.remove();
+                long seen = entry.lastSeen;
+                synchronized (this) {
+                    // A refresh that lands between the read and the CAS wins, and the entry is re-filed
+                    if (now - seen < ttlMillis || !Entry.LAST_SEEN.compareAndSet(entry, seen, Entry.EXPIRED)) {
+                        schedule(entry);
+                        continue;
+                    }
+                    users.remove(entry.name, entry);
+                    record(entry.name, false);
+                    left.add(entry.name);
+                }
+            }
+        }
+        synchronized (this) {
+            if (users.isEmpty() && ticker != null) {
+                ticker.cancel(false);
+                ticker = null;
+            }
+        }
+        for (String user : left) {
+            for (Listener listener : listeners) listener.changed(user, false);
+        }
+    }
+
+    // {"version":V,"users":[...]}
+    public String snapshotJson() {
+        StringBuilder json = new StringBuilder("{");
+        appendSnapshot(json);
+        return json.append("}").toString();
+    }
+
+    // The "version" and "users" fields of snapshotJson(), for embedding in another object
+    public synchronized void appendSnapshot(StringBuilder json) {
+        json.append("\"version\":").append(version).append(",\"users\":[");
+        boolean first = true;
+        for (String user : users.keySet()) {
+            if (!first) json.append(",");
+            Json.appendQuoted(json, user);
+            first = false;
+        }
+        json.append("]");
+    }
+
+    public byte[] snapshotBytes() {
+        byte[] json = snapshot;
+        if (json != null) return json;
+        synchronized (this) {
+            if (snapshot == null) snapshot = snapshotJson().getBytes(StandardCharsets.UTF_8);
+            return snapshot;
+        }
+    }
+
+    // {"version":V,"joined":[...],"left":[...]}, or a full snapshot when "since" is no longer covered
+    public synchronized String deltaJson(long since) {
+        long oldest = changes.isEmpty() ? version : changes.peekFirst().version - 1;
+        if (since < oldest || since > version) return snapshotJson();
+        Map<String, Boolean> net = new LinkedHashMap<>();
+        for (Iterator<Change> it = changes.descendingIterator(); it.hasNext(); ) {
+            Change change = it.next();
+            if (change.version <= since) break;
+            net.putIfAbsent(change.user, change.joined);
+        }
+        StringBuilder joined = new StringBuilder("[");
+        StringBuilder left = new StringBuilder("[");
+        for (Map.Entry<String, Boolean> change : net.entrySet()) {
+            StringBuilder list = change.getValue() ? joined : left;
+            if (list.length() > 1) list.append(",");
+            Json.appendQuoted(list, change.getKey());
+        }
+        return "{\"version\":" + version + ",\"joined\":" + joined + "],\"left\":" + left + "]}";
+    }
+}
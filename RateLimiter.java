@@ -0,0 +1,95 @@
+package javaChat;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets keyed by user, address or anything else, kept lock-free as a generic cell rate algorithm:
+// each key holds only the time at which its bucket will be full again, advanced with a CAS.
+// A request of cost n needs n tokens; a cost larger than the burst is allowed only from a full bucket and
+// the overdraft is paid back before the next request gets through.
+// The table is bounded: once it holds maxKeys buckets, full (idle) ones are swept, and if that is not
+// enough new keys are refused until the earliest remaining bucket fills up. Clearing the table instead
+// would forgive every caller its debt, which is exactly what a flood of fresh keys is after.
+public class RateLimiter {
+    private final String name;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int burst;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    // No bucket can be swept before this time; until then a full table refuses without scanning
+    private volatile long nextSweep = System.nanoTime();
+    private final LongAdder limited = new LongAdder();
+
+    // A rate of 0 disables the limiter
+    public RateLimiter(String name, double perSecond, int burst, int maxKeys) {
+        this.name = name;
+        this.intervalNanos = perSecond > 0 ? (long) (1_000_000_000L / perSecond) : 0;
+        this.burst = Math.max(1, burst);
+        this.burstNanos = intervalNanos * this.burst;
+        this.maxKeys = maxKeys;
+    }
+
+    // -D<prefix>.perSecond and -D<prefix>.burst
+    public static RateLimiter fromSystemProperties(String prefix, double perSecond, int burst, int maxKeys) {
+        return new RateLimiter(prefix,
+                Double.parseDouble(System.getProperty(prefix + ".perSecond", String.valueOf(perSecond))),
+                Integer.getInteger(prefix + ".burst", burst), maxKeys);
+    }
+
+    // Takes cost tokens from the key's bucket. Returns 0 when allowed, otherwise the milliseconds until it would be.
+    public long acquire(String key, int cost) {
+        if (intervalNanos == 0) return 0;
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys && !sweep(now)) {
+                limited.increment();
+                return Math.max(1, (nextSweep - now) / 1_000_000);
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        long needed = intervalNanos * Math.min(cost, burst);
+        while (true) {
+            long full = bucket.get();
+            long base = Math.max(full, now);
+            long over = base - now + needed - burstNanos;
+            if (over > 0) {
+                limited.increment();
+                return Math.max(1, over / 1_000_000);
+            }
+            if (bucket.compareAndSet(full, base + intervalNanos * cost)) return 0;
+        }
+    }
+
+    // Gives back tokens acquire took, when a later check refused the request they were taken for
+    public void refund(String key, int cost) {
+        if (intervalNanos == 0) return;
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) bucket.addAndGet(-intervalNanos * cost);
+    }
+
+    // Returns whether there is room for a new key
+    private boolean sweep(long now) {
+        if (now - nextSweep < 0 || !sweeping.compareAndSet(false, true)) return buckets.size() < maxKeys;
+        try {
+            long earliest = now + burstNanos;
+            for (Iterator<AtomicLong> it = buckets.values().iterator(); it.hasNext(); ) {
+                long full = it.next().get();
+                if (full - now <= 0) it.remove();
+                else if (full - earliest < 0) earliest = full;
+            }
+            nextSweep = earliest;
+            return buckets.size() < maxKeys;
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    public String name() { return name; }
+    public int keys() { return buckets.size(); }
+    public long limited() { return limited.sum(); }
+}
@@ -0,0 +1,82 @@
+package javaChat;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+// One conversation. Each room has its own log, presence, parked long-polls and push subscribers,
+// so traffic in one room never contends with another and clients only receive the rooms they ask for.
+public class Room {
+    final String name;
+    final MessageLog log;
+    final Presence presence;
+    final LongPoll longPoll;
+    final Fanout stream;
+    final Fanout sockets;
+    final SearchIndex search;
+    private final Cluster cluster;
+
+    // Parked long-polls are answered on "executor", normally the HTTP server's
+    Room(String name, Journal journal, Cluster cluster, Executor executor) throws IOException {
+        this.name = name;
+        this.cluster = cluster;
+        this.log = MessageLog.fromSystemProperties();
+        this.presence = Presence.fromSystemProperties();
+        long maxQueuedBytes = Long.getLong("chat.stream.maxQueuedBytes", 1024 * 1024);
+        this.longPoll = new LongPoll(log, ChatHttpServer::writeMessages, executor, Long.getLong("chat.longpoll.maxWaitMillis", 30_000));
+        this.stream = new Fanout(log, ChatHttpServer.StreamHandler::encodeEvent, maxQueuedBytes);
+        this.sockets = new Fanout(log, WebSocketServer::encodeMessage, maxQueuedBytes);
+        if (journal != null) {
+            long start = System.nanoTime();
+            long replayed = journal.attach(log);
+            if (replayed > 0) {
+                System.out.println("Room " + name + ": replayed " + replayed + " messages from the journal in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+            log.addListener(journal);
+        }
+        log.addListener(longPoll);
+        log.addListener(stream);
+        log.addListener(sockets);
+        this.search = new SearchIndex(log);
+        search.start();
+        if (cluster != null && cluster.isLeader()) log.addListener(cluster);
+        presence.addListener((user, joined) -> sockets.broadcast(WebSocketServer.presenceFrame(user, joined)));
+    }
+
+    // Appends a chat message; shared by the HTTP and WebSocket transports. In a cluster, followers send through
+    // the leader and return once the message is in their own replica; IOException if that fails.
+    public void post(String user, String msg) throws IOException {
+        if (msg.isEmpty()) return;
+        if (cluster != null && !cluster.isLeader()) cluster.forward(this, user, List.of(msg));
+        else log.append(Message.of(user, msg));
+        userSeen(user);
+    }
+
+    // Appends a batch with one log operation, so readers are woken once
+    public void postAll(String user, List<String> texts) throws IOException {
+        List<String> nonEmpty = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            if (!text.isEmpty()) nonEmpty.add(text);
+        }
+        if (nonEmpty.isEmpty()) return;
+        if (cluster != null && !cluster.isLeader()) {
+            cluster.forward(this, user, nonEmpty);
+        } else {
+            List<Message> batch = new ArrayList<>(nonEmpty.size());
+            for (String text : nonEmpty) batch.add(Message.of(user, text));
+            log.appendAll(batch);
+        }
+        userSeen(user);
+    }
+
+    // The stand-in Rooms.find returns for rooms that do not exist; it stays empty
+    public boolean vacant() {
+        return name.isEmpty();
+    }
+
+    public void userSeen(String user) {
+        if (user.isEmpty() || vacant()) return;
+        presence.touch(user);
+        if (cluster != null) cluster.seen(this, user);
+    }
+}
@@ -0,0 +1,133 @@
+package javaChat;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// Registry of rooms. A room is created by the first message sent to it (or replicated into it), up to a
+// configured maximum; reads of a room that does not exist see "vacant", an empty stand-in nothing is
+// ever written to, so polling or streaming arbitrary names costs nothing.
+// Lookups of existing rooms are lock-free reads of a ConcurrentHashMap. Creation, including the journal
+// replay, runs outside any map lock: concurrent creators of the same room wait on one future, and the
+// maximum is enforced by a counter reserved before the work starts.
+// With journaling enabled the default room keeps the top-level journal directory and every other room
+// gets a subdirectory named after it.
+public class Rooms {
+    public static final String DEFAULT = "main";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Room>> creating = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final Path journalDir;
+    private final int maxRooms;
+    private final Executor executor;
+    private final Room vacant;
+    private volatile Cluster cluster;
+
+    // "executor" answers the rooms' parked long-polls
+    public Rooms(Path journalDir, int maxRooms, Executor executor) throws IOException {
+        this.journalDir = journalDir;
+        this.maxRooms = maxRooms;
+        this.executor = executor;
+        this.vacant = new Room("", null, null, executor);
+    }
+
+    public static Rooms fromSystemProperties(Executor executor) throws IOException {
+        String dir = System.getProperty("chat.journal.dir", "journal");
+        return new Rooms(dir.isEmpty() ? null : Paths.get(dir), Integer.getInteger("chat.rooms.max", 1000), executor);
+    }
+
+    // Must be set before the first room is created
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    // Recreates every room that has a journal, so history is served from the first request
+    public void recover() throws IOException {
+        get(DEFAULT);
+        if (journalDir == null || !Files.isDirectory(journalDir)) return;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(journalDir, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String name = dir.getFileName().toString();
+                if (NAME.matcher(name).matches()) get(name);
+            }
+        }
+    }
+
+    // For reads: the room, or the vacant stand-in if nothing was ever sent to it. Null names mean the
+    // default room; throws IllegalArgumentException for invalid names.
+    public Room find(String name) {
+        if (name == null || name.isEmpty()) name = DEFAULT;
+        Room room = rooms.get(name);
+        if (room != null) return room;
+        if (!NAME.matcher(name).matches()) throw new IllegalArgumentException("Invalid room name");
+        return vacant;
+    }
+
+    // For writes: the room, created if needed. Throws IllegalArgumentException for invalid names or when
+    // full, and UncheckedIOException if its journal cannot be opened.
+    public Room get(String name) {
+        if (name == null || name.isEmpty()) name = DEFAULT;
+        Room room = rooms.get(name);
+        if (room != null) return room;
+        if (!NAME.matcher(name).matches()) throw new IllegalArgumentException("Invalid room name");
+        CompletableFuture<Room> created = new CompletableFuture<>();
+        CompletableFuture<Room> other = creating.putIfAbsent(name, created);
+        if (other != null) return await(other);
+        try {
+            // Another creator may have finished between the lookup and claiming the name
+            room = rooms.get(name);
+            if (room == null) {
+                if (count.incrementAndGet() > maxRooms) {
+                    count.decrementAndGet();
+                    throw new IllegalArgumentException("Too many rooms");
+                }
+                try {
+                    room = create(name);
+                } catch (RuntimeException e) {
+                    count.decrementAndGet();
+                    throw e;
+                }
+                rooms.put(name, room);
+            }
+            created.complete(room);
+            return room;
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            creating.remove(name, created);
+        }
+    }
+
+    private static Room await(CompletableFuture<Room> created) {
+        try {
+            return created.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private Room create(String name) {
+        Journal journal = null;
+        try {
+            if (journalDir != null) {
+                journal = Journal.fromSystemProperties(name.equals(DEFAULT) ? journalDir : journalDir.resolve(name));
+            }
+            return new Room(name, journal, cluster, executor);
+        } catch (IOException e) {
+            if (journal != null) journal.close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Collection<Room> all() {
+        return rooms.values();
+    }
+}
@@ -0,0 +1,232 @@
+package javaChat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Inverted index over a room's log: every lower-cased word maps to the sequence numbers of the messages that
+// contain it, and every author to the messages they sent. Postings are kept in blocks of up to 128 ascending
+// sequence numbers, delta- and varint-encoded, so a posting usually costs one or two bytes.
+// The log's writer only records how far the log has grown; one shared indexer thread catches each room's
+// index up, so indexing never delays an append. That thread is the index's only writer; searches read
+// concurrently without locking, each block publishing its entries through a volatile count.
+// A search intersects the postings of all its terms (and its author), walking the rarest list from the
+// newest entry back and probing the others block by block, and stops as soon as it has enough matches.
+public class SearchIndex implements MessageLog.Listener {
+    private static final int BLOCK_SIZE = 128;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private static final ExecutorService INDEXER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-indexer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Block {
+        final long base;
+        byte[] data = new byte[8];
+        int length;
+        long last;
+        volatile int count;
+
+        Block(long base) {
+            this.base = base;
+            this.last = base;
+        }
+
+        void add(long seq) {
+            long delta = seq - last;
+            if (length + 10 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            while ((delta & ~0x7FL) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = seq;
+            count = count + 1;
+        }
+
+        // Decodes the published entries in ascending order
+        long[] decode() {
+            int n = count;
+            byte[] bytes = data;
+            long[] seqs = new long[n];
+            long seq = base;
+            int pos = 0;
+            for (int i = 0; i < n; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                seq += delta;
+                seqs[i] = seq;
+            }
+            return seqs;
+        }
+    }
+
+    private static final class Postings {
+        volatile Block[] blocks = new Block[0];
+        volatile int size;
+
+        void add(long seq) {
+            Block[] current = blocks;
+            Block tail = current.length == 0 ? null : current[current.length - 1];
+            if (tail == null || tail.count == BLOCK_SIZE) {
+                tail = new Block(seq);
+                Block[] grown = Arrays.copyOf(current, current.length + 1);
+                grown[current.length] = tail;
+                blocks = grown;
+            }
+            tail.add(seq);
+            size = size + 1;
+        }
+
+        // Drops blocks that only hold trimmed messages; returns false once nothing is left
+        boolean prune(long first) {
+            Block[] current = blocks;
+            int drop = 0;
+            while (drop < current.length && current[drop].count > 0 && current[drop].last < first) drop++;
+            if (drop > 0) {
+                int removed = 0;
+                for (int i = 0; i < drop; i++) removed += current[i].count;
+                blocks = Arrays.copyOfRange(current, drop, current.length);
+                size = size - removed;
+            }
+            return drop < current.length;
+        }
+    }
+
+    // Walks one postings list backwards for membership tests, keeping the last decoded block
+    private static final class Probe {
+        final Block[] blocks;
+        int index = -1;
+        long[] decoded;
+
+        Probe(Postings postings) {
+            this.blocks = postings.blocks;
+        }
+
+        boolean contains(long seq) {
+            int lo = 0;
+            int hi = blocks.length - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (blocks[mid].base <= seq) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (found < 0) return false;
+            if (found != index) {
+                index = found;
+                decoded = blocks[found].decode();
+            }
+            return Arrays.binarySearch(decoded, seq) >= 0;
+        }
+    }
+
+    private final MessageLog log;
+    private final ConcurrentHashMap<String, Postings> terms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Postings> authors = new ConcurrentHashMap<>();
+    private final AtomicBoolean catchUpPending = new AtomicBoolean();
+    private long indexed;
+    private long lastPrune;
+
+    public SearchIndex(MessageLog log) {
+        this.log = log;
+        this.indexed = log.first();
+    }
+
+    // Indexes whatever is already in the log (e.g. replayed from the journal), then follows appends
+    public void start() {
+        log.addListener(this);
+        appended(indexed, log.next());
+    }
+
+    @Override
+    public void appended(long from, long to) {
+        if (catchUpPending.compareAndSet(false, true)) INDEXER.execute(this::catchUp);
+    }
+
+    private void catchUp() {
+        catchUpPending.set(false);
+        indexed = log.read(indexed, this::index);
+        // Retention drops whole log segments; drop the postings that pointed into them
+        long first = log.first();
+        if (first - lastPrune >= MessageLog.SEGMENT_SIZE) {
+            lastPrune = first;
+            terms.values().removeIf(postings -> !postings.prune(first));
+            authors.values().removeIf(postings -> !postings.prune(first));
+        }
+    }
+
+    private void index(long seq, Message message) {
+        authors.computeIfAbsent(message.user.name, k -> new Postings()).add(seq);
+        for (String term : new LinkedHashSet<>(tokenize(message.text()))) {
+            terms.computeIfAbsent(term, k -> new Postings()).add(seq);
+        }
+    }
+
+    // Lower-cased runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // Sequence numbers of the newest messages containing every word of the query (and sent by author, if not
+    // null), newest first. Messages already trimmed from the log are never returned.
+    public long[] search(String query, String author, int limit) {
+        List<Postings> lists = new ArrayList<>();
+        for (String term : new LinkedHashSet<>(tokenize(query))) {
+            Postings postings = terms.get(term);
+            if (postings == null) return new long[0];
+            lists.add(postings);
+        }
+        if (author != null) {
+            Postings postings = authors.get(author);
+            if (postings == null) return new long[0];
+            lists.add(postings);
+        }
+        if (lists.isEmpty() || limit <= 0) return new long[0];
+        lists.sort(Comparator.comparingInt(postings -> postings.size));
+        Block[] driver = lists.get(0).blocks;
+        Probe[] probes = new Probe[lists.size() - 1];
+        for (int i = 1; i < lists.size(); i++) probes[i - 1] = new Probe(lists.get(i));
+        long first = log.first();
+        long[] found = new long[limit];
+        int count = 0;
+        for (int b = driver.length - 1; b >= 0 && count < limit; b--) {
+            long[] seqs = driver[b].decode();
+            candidates:
+            for (int i = seqs.length - 1; i >= 0 && count < limit; i--) {
+                if (seqs[i] < first) return Arrays.copyOf(found, count);
+                for (Probe probe : probes) {
+                    if (!probe.contains(seqs[i])) continue candidates;
+                }
+                found[count++] = seqs[i];
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    public int terms() {
+        return terms.size();
+    }
+}
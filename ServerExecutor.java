@@ -0,0 +1,141 @@
+package javaChat;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Executor for the HttpServer, chosen at startup with -Dchat.executor:
+//   bounded (default) - fixed platform pool with a bounded queue
+//   virtual           - one virtual thread per request, capped by an in-flight limit (JDK 21+)
+//   cached            - the old unbounded cached pool
+// Work that is not admitted is not dropped: it runs on a small shedding thread where the filter
+// answers it with 503 and Retry-After instead of invoking the handler.
+public class ServerExecutor implements Executor {
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+
+    private final String strategy;
+    private final ExecutorService delegate;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore admission;
+    private final int retryAfterSeconds;
+    private final ThreadPoolExecutor shedder;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private ServerExecutor(String strategy, ExecutorService delegate, Semaphore admission, int retryAfterSeconds) {
+        this.strategy = strategy;
+        this.delegate = delegate;
+        this.pool = delegate instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) delegate : null;
+        this.admission = admission;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.shedder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1024),
+                daemon("chat-shed"), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public static ServerExecutor fromSystemProperties() {
+        String strategy = System.getProperty("chat.executor", "bounded");
+        int threads = Integer.getInteger("chat.executor.threads", Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+        int queue = Integer.getInteger("chat.executor.queue", 1024);
+        int maxInFlight = Integer.getInteger("chat.executor.maxInFlight", 10_000);
+        int retryAfter = Integer.getInteger("chat.executor.retryAfterSeconds", 1);
+        if (strategy.equals("virtual")) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) return new ServerExecutor(strategy, virtual, new Semaphore(maxInFlight), retryAfter);
+            System.out.println("Virtual threads need JDK 21 or newer; using the bounded executor");
+            strategy = "bounded";
+        }
+        if (strategy.equals("cached")) {
+            return new ServerExecutor(strategy, Executors.newCachedThreadPool(), null, retryAfter);
+        }
+        ThreadPoolExecutor bounded = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), daemon("chat-http"), new ThreadPoolExecutor.AbortPolicy());
+        bounded.allowCoreThreadTimeOut(true);
+        return new ServerExecutor("bounded", bounded, null, retryAfter);
+    }
+
+    // Looked up reflectively so the server still compiles and runs on JDK 17
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submitted.increment();
+        if (admission != null && !admission.tryAcquire()) {
+            shed(task);
+            return;
+        }
+        try {
+            delegate.execute(() -> {
+                inFlight.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                    if (admission != null) admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (admission != null) admission.release();
+            shed(task);
+        }
+    }
+
+    private void shed(Runnable task) {
+        rejected.increment();
+        shedder.execute(() -> {
+            SHEDDING.set(Boolean.TRUE);
+            try {
+                task.run();
+            } finally {
+                SHEDDING.remove();
+            }
+        });
+    }
+
+    // Must be added to every context so shed exchanges are answered without reaching the handler
+    public Filter sheddingFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (SHEDDING.get() == null) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+
+            @Override
+            public String description() {
+                return "Answers requests the executor did not admit with 503";
+            }
+        };
+    }
+
+    public String strategy() { return strategy; }
+    public int inFlight() { return inFlight.get(); }
+    public int queueDepth() { return pool != null ? pool.getQueue().size() : 0; }
+    public int threads() { return pool != null ? pool.getPoolSize() : inFlight.get(); }
+    public long submitted() { return submitted.sum(); }
+    public long rejected() { return rejected.sum(); }
+}
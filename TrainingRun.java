@@ -0,0 +1,88 @@
+package javaChat;
+import com.sun.net.httpserver.HttpServer;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+// --train: the workload for a class-data-sharing archive. Starts the server on a loopback port without a
+// journal or WebSocket port, drives each HTTP endpoint the way the page and the terminal client do, and
+// returns. Run under -XX:ArchiveClassesAtExit=chat.jsa, the JVM then dumps every class loaded on the way,
+// and servers started with -XX:SharedArchiveFile=chat.jsa map them in already parsed and verified.
+public class TrainingRun {
+    private static final String ROOM = "train";
+    // Counted by send(), so the total cannot drift from the requests actually made
+    private static int requests;
+
+    static void run() throws Exception {
+        long began = System.nanoTime();
+        System.setProperty("chat.journal.dir", "");
+        System.setProperty("chat.ws.port", "-1");
+        for (String limit : new String[] { "send.user", "send.address", "send.global", "poll.address", "poll.global" }) {
+            System.setProperty("chat.limit." + limit + ".perSecond", "0");
+        }
+        HttpServer server = ChatHttpServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        requests = 0;
+        // More than once, so paths taken only by a second request (caches, revalidation) are covered too
+        for (int round = 0; round < 3; round++) {
+            get(client, base + "/", "Accept-Encoding", "gzip, deflate");
+            get(client, base + "/", "If-None-Match", "\"none\"");
+            post(client, base + "/send?room=" + ROOM + "&user=trainer&msg=hello+caf%C3%A9+%22" + round, "", null);
+            post(client, base + "/send?room=" + ROOM + "&user=trainer", "[\"one\",\"two\\nlines\"]", "application/json");
+            post(client, base + "/send?room=" + ROOM + "&user=other", "three\nfour", "text/plain");
+            post(client, base + "/users?room=" + ROOM + "&user=trainer", "", null);
+            get(client, base + "/users?room=" + ROOM);
+            get(client, base + "/users?room=" + ROOM + "&since=0&user=trainer");
+            get(client, base + "/messages?room=" + ROOM + "&since=0");
+            get(client, base + "/messages?room=" + ROOM + "&since=0&format=bin");
+            get(client, base + "/messages?room=" + ROOM + "&before=" + Long.MAX_VALUE + "&limit=50");
+            get(client, base + "/messages?room=" + ROOM + "&before=" + Long.MAX_VALUE + "&limit=50&format=bin");
+            get(client, base + "/messages?room=" + ROOM + "&since=0&wait=1000&user=trainer");
+            get(client, base + "/messages?room=" + ROOM + "&since=" + Long.MAX_VALUE + "&wait=10&format=bin");
+            get(client, base + "/search?room=" + ROOM + "&q=hello&user=trainer");
+            get(client, base + "/stats");
+            get(client, base + "/metrics");
+            get(client, base + "/ws");
+            // The stream never ends; reading the backlog is enough
+            HttpResponse<InputStream> stream = send(client, HttpRequest.newBuilder(URI.create(base + "/stream?room=" + ROOM + "&since=0")).build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream in = stream.body()) {
+                in.read(new byte[256]);
+            }
+        }
+        server.stop(0);
+        System.out.printf("Training run: %d requests in %d ms%n", requests, (System.nanoTime() - began) / 1_000_000);
+    }
+
+    private static void get(HttpClient client, String uri, String... headers) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(uri));
+        for (int i = 0; i < headers.length; i += 2) request.header(headers[i], headers[i + 1]);
+        check(uri, send(client, request.build(), HttpResponse.BodyHandlers.ofByteArray()));
+    }
+
+    private static void post(HttpClient client, String uri, String body, String contentType) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(uri))
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+        if (contentType != null) request.header("Content-Type", contentType);
+        check(uri, send(client, request.build(), HttpResponse.BodyHandlers.ofByteArray()));
+    }
+
+    private static <T> HttpResponse<T> send(HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> body) throws Exception {
+        requests++;
+        return client.send(request, body);
+    }
+
+    // /ws answers 404 with the WebSocket port disabled; anything else unexpected means the run is not representative
+    private static void check(String uri, HttpResponse<byte[]> response) {
+        int status = response.statusCode();
+        if (status >= 500 || (status >= 400 && !uri.endsWith("/ws"))) {
+            throw new IllegalStateException(uri + " answered " + status);
+        }
+    }
+}
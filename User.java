@@ -0,0 +1,88 @@
+package javaChat;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Interned message author. Every message refers to one shared instance instead of repeating the name, and
+// the name's JSON is encoded once. Ids are dense and only meaningful within this process; the binary
+// /messages format ships the id-to-name dictionary for the users it mentions.
+// The table holds users weakly: retained messages (and segments that store only ids) keep their authors
+// reachable, so a user is dropped, and its id reused, once nothing that could name it is left.
+public final class User {
+    private static final class Ref extends WeakReference<User> {
+        final int id;
+        final String name;
+
+        Ref(User user, ReferenceQueue<User> queue) {
+            super(user, queue);
+            this.id = user.id;
+            this.name = user.name;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Ref> BY_NAME = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<User> COLLECTED = new ReferenceQueue<>();
+    private static volatile Ref[] byId = new Ref[256];
+    private static int count;
+    private static int[] free = new int[16];
+    private static int freeCount;
+
+    final int id;
+    final String name;
+    final byte[] utf8;
+    // {"user":<name>,"time":  -- the start of every message object by this user
+    final byte[] jsonPrefix;
+
+    private User(int id, String name) {
+        this.id = id;
+        this.name = name;
+        this.utf8 = name.getBytes(StandardCharsets.UTF_8);
+        this.jsonPrefix = ("{\"user\":" + Json.quote(name) + ",\"time\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static User of(String name) {
+        Ref ref = BY_NAME.get(name);
+        User user = ref != null ? ref.get() : null;
+        return user != null ? user : register(name);
+    }
+
+    // Publishes the user by id before by name
+    private static synchronized User register(String name) {
+        expunge();
+        Ref ref = BY_NAME.get(name);
+        User user = ref != null ? ref.get() : null;
+        if (user != null) return user;
+        user = new User(freeCount > 0 ? free[--freeCount] : count++, name);
+        ref = new Ref(user, COLLECTED);
+        Ref[] refs = byId;
+        if (user.id == refs.length) refs = Arrays.copyOf(refs, refs.length * 2);
+        refs[user.id] = ref;
+        byId = refs;
+        BY_NAME.put(name, ref);
+        return user;
+    }
+
+    // Frees the names and ids of collected users; a name already registered again keeps its new entry
+    private static void expunge() {
+        for (Ref ref; (ref = (Ref) COLLECTED.poll()) != null; ) {
+            BY_NAME.remove(ref.name, ref);
+            if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+            free[freeCount++] = ref.id;
+        }
+    }
+
+    // Only for ids held by something that also keeps the user reachable
+    static User byId(int id) {
+        return byId[id].get();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public static int count() {
+        return BY_NAME.size();
+    }
+}
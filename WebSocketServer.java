@@ -0,0 +1,291 @@
+package javaChat;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Minimal RFC 6455 WebSocket endpoint, served on its own port because com.sun.net.httpserver cannot upgrade.
+// Connect to ws://host:port/ws?room=<room>&user=<name>&since=<next>; a connection stays in one room.
+// Client -> server text frames: "user <name>" renames the connection, "send <text>" posts a message.
+// Server -> client text frames: {"type":"message","message":{"user":...,"time":...,"text":...},"next":N} per message,
+// where N is the since to resume from, {"type":"users","version":V,"users":[...]} on connect,
+// then {"type":"users","joined":[...]} / {"type":"users","left":[...]} as presence changes, and
+// {"type":"error","status":429,"retryAfterMillis":N} when a "send" is over the rate limit.
+// Every text frame from the client counts as presence activity.
+// A browser's handshake must come from a page on the same host (any port, since the page is served from the
+// HTTP port); handshakes without an Origin, from non-browser clients, are accepted.
+// Each connection holds a reader thread; beyond chat.ws.maxConnections new connections get a 503.
+// Outgoing frames go through a Fanout, so each message is framed once for all sockets.
+public class WebSocketServer {
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_HEADER_BYTES = 8192;
+    private static final int MAX_MESSAGE_BYTES = 64 * 1024;
+    private static final int MAX_CONNECTIONS = Math.max(1, Integer.getInteger("chat.ws.maxConnections", 1000));
+
+    private final InetSocketAddress address;
+    private final Rooms rooms;
+    // No queue: a connection either gets a thread at once or is refused
+    private final ExecutorService readers = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "chat-ws");
+                t.setDaemon(true);
+                return t;
+            });
+
+    public WebSocketServer(InetSocketAddress address, Rooms rooms) {
+        this.address = address;
+        this.rooms = rooms;
+    }
+
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        readers.execute(() -> serve(socket));
+                    } catch (RejectedExecutionException e) {
+                        try (socket) {
+                            refuse(socket.getOutputStream(), "503 Service Unavailable\r\nRetry-After: 5");
+                        }
+                    }
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) return;
+                }
+            }
+        }, "chat-ws-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // A single join or leave, pushed to every socket in the room
+    static byte[] presenceFrame(String user, boolean joined) {
+        String json = "{\"type\":\"users\",\"" + (joined ? "joined" : "left") + "\":[" + Json.quote(user) + "]}";
+        return frame(0x1, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final byte[] MESSAGE_PREFIX = "{\"type\":\"message\",\"message\":".getBytes(StandardCharsets.UTF_8);
+
+    static byte[] encodeMessage(long seq, Message message) {
+        byte[] json = message.json();
+        byte[] suffix = (",\"next\":" + (seq + 1) + "}").getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[MESSAGE_PREFIX.length + json.length + suffix.length];
+        System.arraycopy(MESSAGE_PREFIX, 0, payload, 0, MESSAGE_PREFIX.length);
+        System.arraycopy(json, 0, payload, MESSAGE_PREFIX.length, json.length);
+        System.arraycopy(suffix, 0, payload, MESSAGE_PREFIX.length + json.length, suffix.length);
+        return frame(0x1, payload);
+    }
+
+    // Server frames are never masked
+    static byte[] frame(int opcode, byte[] payload) {
+        int len = payload.length;
+        int header = len < 126 ? 2 : len <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[header + len];
+        frame[0] = (byte) (0x80 | opcode);
+        if (len < 126) {
+            frame[1] = (byte) len;
+        } else if (len <= 0xFFFF) {
+            frame[1] = 126;
+            frame[2] = (byte) (len >>> 8);
+            frame[3] = (byte) len;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) frame[2 + i] = (byte) ((long) len >>> (56 - 8 * i));
+        }
+        System.arraycopy(payload, 0, frame, header, len);
+        return frame;
+    }
+
+    private void serve(Socket socket) {
+        Fanout.Subscriber sub = null;
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            String[] request = readUpgrade(in, out);
+            if (request == null) {
+                socket.close();
+                return;
+            }
+            String target = request[0];
+            Map<String, String> params = ChatHttpServer.queryToMap(target.contains("?") ? target.substring(target.indexOf('?') + 1) : null);
+            Room room = rooms.find(params.get("room"));
+            // Connecting does not create a room; the page falls back to /stream, which retries until one exists
+            if (room.vacant()) {
+                refuse(out, "404 Not Found");
+                socket.close();
+                return;
+            }
+            upgrade(out, request[1]);
+            String user = params.getOrDefault("user", "anon");
+            long since = 0;
+            try { since = Long.parseLong(params.getOrDefault("since", "0")); } catch (Exception ignored) {}
+            sub = room.sockets.subscribe(out, socket, since);
+            room.userSeen(user);
+            StringBuilder users = new StringBuilder("{\"type\":\"users\",");
+            room.presence.appendSnapshot(users);
+            sub.send(frame(0x1, users.append('}').toString().getBytes(StandardCharsets.UTF_8)));
+            readFrames(in, sub, room, user, socket.getInetAddress().getHostAddress());
+        } catch (IOException | RuntimeException e) {
+            if (sub != null) sub.close();
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Returns the request target and Sec-WebSocket-Key, or null after answering a request that is not a valid upgrade
+    private static String[] readUpgrade(InputStream in, OutputStream out) throws IOException {
+        String[] lines = readHeader(in).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int idx = lines[i].indexOf(':');
+            if (idx > 0) headers.put(lines[i].substring(0, idx).trim().toLowerCase(Locale.ROOT), lines[i].substring(idx + 1).trim());
+        }
+        String key = headers.get("sec-websocket-key");
+        if (requestLine.length < 3 || !requestLine[0].equals("GET") || key == null
+                || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+            refuse(out, "400 Bad Request");
+            return null;
+        }
+        String origin = headers.get("origin");
+        if (origin != null && !sameHost(origin, headers.get("host"))) {
+            refuse(out, "403 Forbidden");
+            return null;
+        }
+        return new String[] { requestLine[1], key };
+    }
+
+    // Compares the host of an Origin (scheme://host[:port]) with that of a Host header (host[:port])
+    static boolean sameHost(String origin, String host) {
+        if (host == null) return false;
+        try {
+            String originHost = new URI(origin).getHost();
+            String hostHost = new URI("ws://" + host).getHost();
+            return originHost != null && originHost.equalsIgnoreCase(hostHost);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    private static void refuse(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void upgrade(OutputStream out, String key) throws IOException {
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            accept = Base64.getEncoder().encodeToString(sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int state = 0;
+        while (state < 4) {
+            int b = in.read();
+            if (b < 0 || header.size() >= MAX_HEADER_BYTES) throw new EOFException("Incomplete handshake");
+            header.write(b);
+            state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+        }
+        return header.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private void readFrames(InputStream in, Fanout.Subscriber sub, Room room, String user, String address) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            int b0 = in.read();
+            int b1 = in.read();
+            if (b0 < 0 || b1 < 0) {
+                sub.close();
+                return;
+            }
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            long len = b1 & 0x7F;
+            if (len == 126) len = (readByte(in) << 8) | readByte(in);
+            else if (len == 127) {
+                len = 0;
+                for (int i = 0; i < 8; i++) len = (len << 8) | readByte(in);
+            }
+            // Clients must mask every frame
+            if ((b1 & 0x80) == 0 || len < 0 || len > MAX_MESSAGE_BYTES) {
+                sub.finish(frame(0x8, closePayload((b1 & 0x80) == 0 ? 1002 : 1009)));
+                return;
+            }
+            byte[] mask = in.readNBytes(4);
+            byte[] payload = in.readNBytes((int) len);
+            if (payload.length < len) {
+                sub.close();
+                return;
+            }
+            for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+            switch (opcode) {
+                case 0x0, 0x1 -> {
+                    message.write(payload);
+                    if (message.size() > MAX_MESSAGE_BYTES) {
+                        sub.finish(frame(0x8, closePayload(1009)));
+                        return;
+                    }
+                    if (fin) {
+                        user = command(room, message.toString(StandardCharsets.UTF_8), user, address, sub);
+                        message.reset();
+                    }
+                }
+                case 0x8 -> {
+                    sub.finish(frame(0x8, payload.length >= 2 ? Arrays.copyOf(payload, 2) : new byte[0]));
+                    return;
+                }
+                case 0x9 -> sub.send(frame(0xA, payload));
+                case 0xA -> { }
+                default -> {
+                    sub.finish(frame(0x8, closePayload(1003)));
+                    return;
+                }
+            }
+        }
+    }
+
+    private static String command(Room room, String text, String user, String address, Fanout.Subscriber sub) {
+        room.userSeen(user);
+        if (text.startsWith("user ")) {
+            String name = text.substring(5).trim();
+            if (!name.isEmpty()) {
+                room.userSeen(name);
+                return name;
+            }
+        } else if (text.startsWith("send ")) {
+            // Same limits as POST /send; a refused message is answered with an error frame instead of a 429
+            long wait = ChatHttpServer.limitSend(user, address, 1);
+            if (wait > 0) {
+                sub.send(frame(0x1, ("{\"type\":\"error\",\"status\":429,\"retryAfterMillis\":" + wait + "}").getBytes(StandardCharsets.UTF_8)));
+                return user;
+            }
+            try {
+                room.post(user, text.substring(5));
+            } catch (IOException e) {
+                sub.send(frame(0x1, "{\"type\":\"error\",\"status\":503}".getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return user;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+
+    private static byte[] closePayload(int status) {
+        return new byte[] { (byte) (status >>> 8), (byte) status };
+    }
+}
@@ -0,0 +1,39 @@
+package javaChat;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+// An in-memory HttpExchange, so handlers' response assembly can be measured without sockets
+class FakeExchange extends HttpExchange {
+    private final URI uri;
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+    private int status = -1;
+
+    FakeExchange(String uri) {
+        this.uri = URI.create(uri);
+    }
+
+    @Override public Headers getRequestHeaders() { return requestHeaders; }
+    @Override public Headers getResponseHeaders() { return responseHeaders; }
+    @Override public URI getRequestURI() { return uri; }
+    @Override public String getRequestMethod() { return "GET"; }
+    @Override public HttpContext getHttpContext() { return null; }
+    @Override public void close() { }
+    @Override public InputStream getRequestBody() { return InputStream.nullInputStream(); }
+    @Override public OutputStream getResponseBody() { return body; }
+    @Override public void sendResponseHeaders(int rCode, long responseLength) { status = rCode; }
+    @Override public InetSocketAddress getRemoteAddress() { return new InetSocketAddress("127.0.0.1", 40000); }
+    @Override public int getResponseCode() { return status; }
+    @Override public InetSocketAddress getLocalAddress() { return new InetSocketAddress("127.0.0.1", 8081); }
+    @Override public String getProtocol() { return "HTTP/1.1"; }
+    @Override public Object getAttribute(String name) { return null; }
+    @Override public void setAttribute(String name, Object value) { }
+    @Override public void setStreams(InputStream i, OutputStream o) { }
+    @Override public HttpPrincipal getPrincipal() { return null; }
+}
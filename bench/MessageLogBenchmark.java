@@ -0,0 +1,59 @@
+package javaChat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Appends to the segmented log: alone, from several threads, in batches, and while readers scan the tail
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+    private MessageLog log;
+    private Message message;
+    private List<Message> batch;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        log = new MessageLog(100_000, 64 << 20, 0);
+        message = Message.of("alice", "hello, this is a typical chat line");
+        batch = Collections.nCopies(16, message);
+        for (int i = 0; i < 1000; i++) log.append(message);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long append() {
+        return log.append(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long appendContended() {
+        return log.append(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(16)
+    public long appendBatchContended() {
+        return log.appendAll(batch);
+    }
+
+    @Benchmark
+    @Group("appendWhileReading")
+    @GroupThreads(2)
+    public long writer() {
+        return log.append(message);
+    }
+
+    @Benchmark
+    @Group("appendWhileReading")
+    @GroupThreads(2)
+    public long reader(Blackhole blackhole) {
+        return log.read(log.next() - 100, (seq, m) -> blackhole.consume(m));
+    }
+}
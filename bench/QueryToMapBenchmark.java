@@ -0,0 +1,24 @@
+package javaChat;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Query string parsing, done on every request
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryToMapBenchmark {
+    @Param({
+            "room=main&since=123456&wait=25000&user=alice",
+            "room=main&user=J%C3%BCrgen+M&msg=hello%20world%21%20%F0%9F%98%80%20how+are+you%3F"
+    })
+    public String query;
+
+    @Benchmark
+    public Map<String, String> queryToMap() {
+        return ChatHttpServer.queryToMap(query);
+    }
+}
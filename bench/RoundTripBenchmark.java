@@ -0,0 +1,55 @@
+package javaChat;
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// End to end over loopback: a long-poll is started, a message is sent, and the poll's answer is awaited.
+// The server runs in the benchmark JVM with the journal, WebSocket endpoint and rate limits turned off.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    private HttpServer server;
+    private HttpClient client;
+    private String base;
+    private long next;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty("chat.journal.dir", "");
+        System.setProperty("chat.ws.port", "-1");
+        for (String limit : new String[] { "send.user", "send.address", "send.global", "poll.address", "poll.global" }) {
+            System.setProperty("chat.limit." + limit + ".perSecond", "0");
+        }
+        server = ChatHttpServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    public int sendAndPoll() throws Exception {
+        CompletableFuture<HttpResponse<String>> poll = client.sendAsync(
+                HttpRequest.newBuilder(URI.create(base + "/messages?since=" + next + "&wait=5000")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        client.send(HttpRequest.newBuilder(URI.create(base + "/send?user=bench&msg=hello"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+        String body = poll.get().body();
+        next = Long.parseLong(body.substring(body.lastIndexOf("\"next\":") + 7, body.length() - 1));
+        return body.length();
+    }
+}
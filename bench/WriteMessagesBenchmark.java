@@ -0,0 +1,43 @@
+package javaChat;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Assembly of a /messages response body for a client that is "backlog" messages behind
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteMessagesBenchmark {
+    @Param({"1", "100", "1000", "10000"})
+    public int backlog;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    // Accept-Encoding of the client; gzip applies to responses over chat.messages.gzipBytes
+    @Param({"identity", "gzip"})
+    public String encoding;
+
+    private MessageLog log;
+    private long since;
+
+    @Setup
+    public void setup() {
+        log = new MessageLog(100_000, 64 << 20, 0, 0, offHeap);
+        for (int i = 0; i < 10_000; i++) log.append(Message.of("user" + (i % 50), "message number " + i + " with \"quotes\" and ünïcödé"));
+        since = log.next() - backlog;
+        // Lift the chat.messages.maxPerResponse cap so the whole backlog goes into the one response
+        ChatHttpServer.maxMessages = Math.max(ChatHttpServer.maxMessages, backlog);
+    }
+
+    @Benchmark
+    public int writeMessages() throws IOException {
+        FakeExchange exchange = new FakeExchange("/messages?since=" + since);
+        exchange.getRequestHeaders().add("Accept-Encoding", encoding);
+        ChatHttpServer.writeMessages(exchange, log, since);
+        return exchange.body.size();
+    }
+}
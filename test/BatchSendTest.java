@@ -0,0 +1,82 @@
+package javaChat;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchSendTest {
+    private static final String ROOM = "batch-test";
+
+    private static HttpResponse<String> send(String contentType, String body) throws Exception {
+        return LocalServer.CLIENT.send(HttpRequest.newBuilder(URI.create(LocalServer.base() + "/send?room=" + ROOM + "&user=batcher"))
+                .header("Content-Type", contentType).POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static List<String> texts(long since) throws Exception {
+        List<String> texts = new ArrayList<>();
+        LocalServer.base();
+        ChatHttpServer.rooms.find(ROOM).log.read(since, (seq, message) -> texts.add(message.text()));
+        return texts;
+    }
+
+    @Test
+    void appendAllAddsTheBatchAtOnceAndNotifiesOnce() {
+        MessageLog log = new MessageLog(0, 0, 0);
+        List<long[]> ranges = new ArrayList<>();
+        log.addListener((from, to) -> ranges.add(new long[] { from, to }));
+        log.append(Message.of("a", "single"));
+        assertEquals(1, log.appendAll(List.of(Message.of("b", "one"), Message.of("b", "two"), Message.of("b", "three"))));
+        assertEquals(4, log.appendAll(List.of()));
+        assertEquals(4, log.next());
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[] { 1, 4 }, ranges.get(1));
+        assertEquals("three", log.get(3).text());
+    }
+
+    @Test
+    void parsesJsonArraysAndLines() {
+        assertEquals(List.of("a", "b \"c\"", ""),
+                ChatHttpServer.SendHandler.parseBatch("[\"a\",\"b \\\"c\\\"\",\"\"]", "application/json; charset=UTF-8"));
+        assertEquals(List.of("one", "two", "three"), ChatHttpServer.SendHandler.parseBatch("one\r\ntwo\n\n\0\nthree", "text/plain"));
+        assertEquals(List.of("[\"not json\"]"), ChatHttpServer.SendHandler.parseBatch("[\"not json\"]", null));
+        assertThrows(IllegalArgumentException.class, () -> ChatHttpServer.SendHandler.parseBatch("[\"a\",", "application/json"));
+        assertThrows(IllegalArgumentException.class, () -> ChatHttpServer.SendHandler.parseBatch("x\n".repeat(1001), "text/plain"));
+    }
+
+    @Test
+    void parseStringArray() {
+        assertEquals(List.of(), Json.parseStringArray(" [ ] "));
+        assertEquals(List.of("a", "b\n\"c\"", "é"), Json.parseStringArray("[\"a\", \"b\\n\\\"c\\\"\",\"\\u00e9\"]"));
+        for (String text : new String[] { "", "quote \" backslash \\", "new\nline\ttab", "separators \u2028 \u2029", "café 你好 😀" }) {
+            assertEquals(List.of(text), Json.parseStringArray("[" + Json.quote(text) + "]"));
+        }
+        for (String bad : new String[] { "", "{}", "[1]", "[\"a\"", "[\"a\",]", "[\"a\"] x", "[\"\\x\"]", "[\"\\u12\"]" }) {
+            assertThrows(IllegalArgumentException.class, () -> Json.parseStringArray(bad), bad);
+        }
+    }
+
+    @Test
+    void postsABatchInOrder() throws Exception {
+        assertEquals(200, LocalServer.post("/send?room=" + ROOM + "&user=batcher&msg=first").statusCode());
+        long since = ChatHttpServer.rooms.find(ROOM).log.next();
+        assertEquals(200, send("application/json", "[\"j1\",\"\",\"j2 ü\"]").statusCode());
+        assertEquals(200, send("text/plain; charset=UTF-8", "t1\nt2\r\n").statusCode());
+        // Empty entries are dropped; everything else keeps its order
+        assertEquals(List.of("j1", "j2 ü", "t1", "t2"), texts(since));
+    }
+
+    @Test
+    void refusesBadAndOversizedBatches() throws Exception {
+        assertEquals(400, send("application/json", "{\"not\":\"an array\"}").statusCode());
+        assertEquals(400, send("text/plain", "x\n".repeat(1001)).statusCode());
+        HttpResponse<String> tooLarge = send("text/plain", "x".repeat((1 << 20) + 1));
+        assertEquals(413, tooLarge.statusCode());
+        assertEquals("close", tooLarge.headers().firstValue("Connection").orElse(null));
+        // The unread body does not break the next request
+        for (int i = 0; i < 4; i++) assertEquals(200, LocalServer.post("/send?room=" + ROOM + "&user=batcher&msg=after" + i).statusCode());
+    }
+}
@@ -0,0 +1,18 @@
+package javaChat;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatHttpClientTest {
+    @Test
+    void readsTheMessageOutOfAWebSocketFrame() throws IOException {
+        byte[] frame = WebSocketServer.encodeMessage(7, Message.restore("bob", "hi \"there\" 😀\n", 1));
+        assertEquals("bob: hi \"there\" 😀\n", ChatHttpClient.messageLine(new String(Arrays.copyOfRange(frame, 2, frame.length), StandardCharsets.UTF_8)));
+        // Key order does not matter, and "user" need not come first
+        assertEquals("alé: x", ChatHttpClient.messageLine("{\"next\":3,\"message\":{\"text\":\"x\",\"time\":1,\"user\":\"al\\u00e9\"},\"type\":\"message\"}"));
+        assertNull(ChatHttpClient.messageLine("{\"type\":\"users\",\"version\":2,\"users\":[\"bob\"]}"));
+        assertThrows(IOException.class, () -> ChatHttpClient.messageLine("{\"type\":"));
+    }
+}
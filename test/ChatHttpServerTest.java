@@ -0,0 +1,74 @@
+package javaChat;
+import java.net.http.HttpResponse;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Conditional requests: every cacheable response carries an ETag, and If-None-Match with it gets a bodiless 304
+class ChatHttpServerTest {
+    private static final String ROOM = "etag-test";
+
+    @BeforeAll
+    static void createRoom() throws Exception {
+        assertEquals(200, LocalServer.post("/send?room=" + ROOM + "&user=alice&msg=hello").statusCode());
+    }
+
+    private static String etag(HttpResponse<?> response) {
+        return response.headers().firstValue("ETag").orElseThrow();
+    }
+
+    @Test
+    void pageIsRevalidatedPerEncoding() throws Exception {
+        HttpResponse<String> identity = LocalServer.get("/");
+        assertEquals(200, identity.statusCode());
+        assertTrue(identity.body().contains("<!DOCTYPE html>"));
+        HttpResponse<String> gzip = LocalServer.get("/", "Accept-Encoding", "gzip");
+        assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElse(null));
+        assertNotEquals(etag(identity), etag(gzip));
+
+        HttpResponse<String> revalidated = LocalServer.get("/", "If-None-Match", etag(identity));
+        assertEquals(304, revalidated.statusCode());
+        assertEquals("", revalidated.body());
+        assertEquals(etag(identity), etag(revalidated));
+        assertEquals(304, LocalServer.get("/", "If-None-Match", "\"other\", " + etag(identity)).statusCode());
+        assertEquals(304, LocalServer.get("/", "If-None-Match", "*").statusCode());
+        // The identity tag does not validate the gzip body
+        assertEquals(200, LocalServer.get("/", "Accept-Encoding", "gzip", "If-None-Match", etag(identity)).statusCode());
+    }
+
+    @Test
+    void messagesAreNotModifiedUntilTheLogChanges() throws Exception {
+        String path = "/messages?room=" + ROOM + "&since=0";
+        HttpResponse<String> first = LocalServer.get(path);
+        assertEquals(200, first.statusCode());
+        String tag = etag(first);
+        assertTrue(tag.startsWith("W/\""), tag);
+
+        assertEquals(304, LocalServer.get(path, "If-None-Match", tag).statusCode());
+        // The comparison is weak: the strong form of the same tag matches too
+        assertEquals(304, LocalServer.get(path, "If-None-Match", tag.substring(2)).statusCode());
+        assertEquals(304, LocalServer.get(path + "&format=bin", "If-None-Match", tag).statusCode());
+
+        assertEquals(200, LocalServer.post("/send?room=" + ROOM + "&user=alice&msg=again").statusCode());
+        HttpResponse<String> changed = LocalServer.get(path, "If-None-Match", tag);
+        assertEquals(200, changed.statusCode());
+        assertNotEquals(tag, etag(changed));
+        assertTrue(changed.body().contains("\"text\":\"again\""));
+    }
+
+    @Test
+    void usersAreValidatedByThePresenceVersion() throws Exception {
+        String path = "/users?room=" + ROOM;
+        HttpResponse<String> users = LocalServer.get(path);
+        assertEquals(200, users.statusCode());
+        String tag = etag(users);
+        assertTrue(users.body().startsWith("{\"version\":" + tag.substring(1, tag.length() - 1) + ","), users.body());
+
+        assertEquals(304, LocalServer.get(path, "If-None-Match", tag).statusCode());
+        // A join changes the version
+        assertEquals(200, LocalServer.get(path + "&user=newcomer").statusCode());
+        HttpResponse<String> changed = LocalServer.get(path, "If-None-Match", tag);
+        assertEquals(200, changed.statusCode());
+        assertTrue(changed.body().contains("\"newcomer\""));
+    }
+}
@@ -0,0 +1,78 @@
+package javaChat;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+// A leader and followers in one JVM, talking over loopback
+class ClusterTest {
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static InetSocketAddress freeAddress() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), probe.getLocalPort());
+        }
+    }
+
+    private static Rooms node(InetSocketAddress leader, InetSocketAddress self, String secret) throws IOException {
+        Rooms rooms = new Rooms(null, 10, EXECUTOR);
+        Cluster cluster = new Cluster(rooms, leader, self, 15_000, secret);
+        rooms.setCluster(cluster);
+        cluster.start();
+        return rooms;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static long next(Rooms rooms, String room) {
+        return rooms.find(room).log.next();
+    }
+
+    @Test
+    void followersForwardSendsAndReplicateTheLeadersLog() throws Exception {
+        InetSocketAddress leaderAddress = freeAddress();
+        Rooms leader = node(leaderAddress, leaderAddress, "s3cret");
+        leader.get("replicated").post("alice", "before the follower joined");
+        Rooms follower = node(leaderAddress, freeAddress(), "s3cret");
+        await(() -> next(follower, "replicated") == 1);
+        assertEquals("before the follower joined", follower.find("replicated").log.get(0).text());
+
+        // A send through the follower returns once its own replica holds the message
+        follower.get("replicated").post("bob", "through the follower");
+        assertEquals(2, next(follower, "replicated"));
+        assertEquals("bob", follower.find("replicated").log.get(1).user());
+        assertEquals("through the follower", leader.find("replicated").log.get(1).text());
+
+        leader.get("replicated").post("alice", "from the leader");
+        await(() -> next(follower, "replicated") == 3);
+        assertEquals("from the leader", follower.find("replicated").log.get(2).text());
+        // The follower passes its users' presence on to the leader
+        await(() -> leader.find("replicated").presence.size() == 2);
+    }
+
+    @Test
+    void theLeaderRefusesAFollowerWithTheWrongSecret() throws Exception {
+        InetSocketAddress leaderAddress = freeAddress();
+        Rooms leader = node(leaderAddress, leaderAddress, "s3cret");
+        leader.get("guarded").post("alice", "private");
+        Rooms intruder = node(leaderAddress, freeAddress(), "guess");
+        Thread.sleep(500);
+        assertTrue(intruder.find("guarded").vacant());
+        IOException refused = assertThrows(IOException.class, () -> intruder.get("guarded").post("mallory", "let me in"));
+        assertEquals("Not connected to the cluster leader", refused.getMessage());
+        assertEquals(1, next(leader, "guarded"));
+    }
+}
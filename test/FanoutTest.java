@@ -0,0 +1,132 @@
+package javaChat;
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FanoutTest {
+    private static final Fanout.Encoder LINES = (seq, message) -> (seq + ":" + message.text() + "\n").getBytes(StandardCharsets.UTF_8);
+
+    // Collects what the writers push; readers wait for a given number of lines
+    private static final class Sink extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        volatile boolean closed;
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+            notifyAll();
+        }
+
+        synchronized List<String> await(int lines) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            List<String> read;
+            while ((read = lines()).size() < lines && System.currentTimeMillis() < deadline) wait(50);
+            return read;
+        }
+
+        private List<String> lines() {
+            String text = bytes.toString(StandardCharsets.UTF_8);
+            return text.isEmpty() ? List.of() : List.of(text.split("\n"));
+        }
+    }
+
+    @Test
+    void aStalledSubscriberIsDroppedWithoutHoldingUpTheOthers() throws Exception {
+        MessageLog log = new MessageLog(0, 0, 0);
+        Fanout fanout = new Fanout(log, LINES, 1024);
+        log.addListener(fanout);
+        log.append(Message.of("u", "replayed"));
+
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch disconnected = new CountDownLatch(1);
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // The replay goes through; the first live write never returns until released
+                if (len > 0 && b[off] == '0') return;
+                stalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        fanout.subscribe(stuck, disconnected::countDown, 0);
+        Sink fast = new Sink();
+        fanout.subscribe(fast, () -> fast.closed = true, 0);
+        assertEquals(2, fanout.size());
+
+        log.append(Message.of("u", "first live"));
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        // In rounds the fast reader keeps up with, while the stalled one's queue grows past its limit
+        List<String> received = List.of();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) log.append(Message.of("u", "message " + (round * 10 + i)));
+            received = fast.await(2 + 10 * (round + 1));
+        }
+        assertEquals(202, received.size());
+        assertEquals("0:replayed", received.get(0));
+        assertEquals("201:message 199", received.get(201));
+        // The stalled one went over its queue limit and was taken out while its write was still blocked
+        assertEquals(1, fanout.size());
+        assertFalse(fast.closed);
+        release.countDown();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void streamReplaysAfterTheLastEventIdThenGoesLive() throws Exception {
+        String room = "stream-test";
+        for (int i = 0; i < 3; i++) assertEquals(200, LocalServer.post("/send?room=" + room + "&user=alice&msg=m" + i).statusCode());
+        HttpRequest request = HttpRequest.newBuilder(URI.create(LocalServer.base() + "/stream?room=" + room))
+                .header("Last-Event-ID", "1").build();
+        HttpResponse<InputStream> response = LocalServer.CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream"));
+        try (BufferedReader events = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            // The event id is one past the log sequence, so Last-Event-ID: 1 resumes at the second message
+            assertEquals(List.of("id: 2", "m1"), nextEvent(events));
+            assertEquals(List.of("id: 3", "m2"), nextEvent(events));
+            assertEquals(200, LocalServer.post("/send?room=" + room + "&user=bob&msg=live").statusCode());
+            assertEquals(List.of("id: 4", "live"), nextEvent(events));
+        }
+    }
+
+    // The id line and the message text of the next event, skipping heartbeat comments
+    private static List<String> nextEvent(BufferedReader events) throws IOException {
+        List<String> event = new ArrayList<>();
+        String line;
+        while ((line = events.readLine()) != null) {
+            if (line.startsWith("id: ")) {
+                event.add(line);
+            } else if (line.startsWith("data: ")) {
+                String data = line.substring(6);
+                event.add(data.substring(data.indexOf("\"text\":\"") + 8, data.lastIndexOf('"')));
+            } else if (line.isEmpty() && !event.isEmpty()) {
+                return event;
+            }
+        }
+        throw new EOFException("stream ended");
+    }
+}
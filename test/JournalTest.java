@@ -0,0 +1,169 @@
+package javaChat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    private Journal journal() {
+        return journal(Journal.Fsync.OS);
+    }
+
+    private Journal journal(Journal.Fsync fsync) {
+        return new Journal(dir, SEGMENT_BYTES, 0, fsync, 10);
+    }
+
+    private MessageLog replay() throws IOException {
+        MessageLog log = new MessageLog(0, 0, 0);
+        Journal journal = journal();
+        journal.attach(log);
+        journal.close();
+        return log;
+    }
+
+    private void write(int count) throws IOException {
+        write(count, Journal.Fsync.OS);
+    }
+
+    // Appends only queue the records; close writes out whatever the commit thread has not reached yet
+    private void write(int count, Journal.Fsync fsync) throws IOException {
+        MessageLog log = new MessageLog(0, 0, 0);
+        Journal journal = journal(fsync);
+        journal.attach(log);
+        log.addListener(journal);
+        for (int i = 0; i < count; i++) log.append(Message.restore("user" + (i % 3), "message " + i + " ünïcode", 1000 + i));
+        journal.close();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().toList();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Journal.Fsync.class)
+    void replaysWhatWasWritten(Journal.Fsync fsync) throws IOException {
+        write(500, fsync);
+        assertTrue(segments().size() > 1, "expected the journal to roll");
+        MessageLog log = replay();
+        assertEquals(0, log.first());
+        assertEquals(500, log.next());
+        for (int i = 0; i < 500; i++) {
+            Message message = log.get(i);
+            assertEquals("user" + (i % 3), message.user());
+            assertEquals("message " + i + " ünïcode", message.text());
+            assertEquals(1000 + i, message.time());
+        }
+    }
+
+    @Test
+    void recordsReachTheFileWithoutAClose() throws Exception {
+        MessageLog log = new MessageLog(0, 0, 0);
+        Journal journal = journal(Journal.Fsync.ALWAYS);
+        journal.attach(log);
+        log.addListener(journal);
+        log.appendAll(List.of(Message.of("a", "one"), Message.of("b", "two")));
+        // The commit thread writes the batch on its own
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        MessageLog copy;
+        while ((copy = replay()).next() < 2 && System.nanoTime() < deadline) Thread.sleep(5);
+        assertEquals(2, copy.next());
+        assertEquals("two", copy.get(1).text());
+        journal.close();
+    }
+
+    @Test
+    void keepsHistoryOnBothSidesOfAMissingSegment() throws IOException {
+        write(500);
+        List<Path> segments = segments();
+        assertTrue(segments.size() >= 3);
+        long lost = firstSeq(segments.get(1));
+        long resumed = firstSeq(segments.get(2));
+        Files.delete(segments.get(1));
+
+        MessageLog log = replay();
+        assertEquals(0, log.first());
+        assertEquals(500, log.next());
+        assertEquals("message 0 ünïcode", log.get(0).text());
+        assertNull(log.get(resumed - 1));
+        assertEquals("message " + resumed + " ünïcode", log.get(resumed).text());
+        List<Long> seqs = new ArrayList<>();
+        log.read(0, (seq, message) -> seqs.add(seq));
+        assertEquals(lost + 500 - resumed, seqs.size());
+    }
+
+    @Test
+    void stopsAtADamagedRecordAndAppendsAfterTheLastGoodOne() throws IOException {
+        write(3);
+        Path segment = segments().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        // Corrupt the text of the third record; its checksum no longer matches
+        int third = recordOffset(bytes, 2);
+        bytes[third + 24] ^= 1;
+        Files.write(segment, bytes);
+
+        MessageLog log = new MessageLog(0, 0, 0);
+        Journal journal = journal();
+        journal.attach(log);
+        assertEquals(2, log.next());
+        log.addListener(journal);
+        log.append(Message.restore("late", "replaces the damaged record", 5));
+        journal.close();
+
+        MessageLog again = replay();
+        assertEquals(3, again.next());
+        assertEquals("replaces the damaged record", again.get(2).text());
+    }
+
+    @Test
+    void replaysRecordsInTheOlderUserColonTextFormat() throws IOException {
+        ByteBuffer segment = ByteBuffer.allocate(SEGMENT_BYTES);
+        legacyRecord(segment, 0, 100, "alice: hello: there");
+        legacyRecord(segment, 1, 101, "no separator");
+        Files.write(dir.resolve(String.format("journal-%020d.log", 0)), segment.array());
+
+        MessageLog log = replay();
+        assertEquals(2, log.next());
+        assertEquals("alice", log.get(0).user());
+        assertEquals("hello: there", log.get(0).text());
+        assertEquals(100, log.get(0).time());
+        assertEquals("", log.get(1).user());
+        assertEquals("no separator", log.get(1).text());
+    }
+
+    // Layout: int length, int CRC32 of the rest, long seq, long time, payload
+    private static void legacyRecord(ByteBuffer segment, long seq, long time, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(16 + bytes.length).putLong(seq).putLong(time).put(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        segment.putInt(bytes.length).putInt((int) crc.getValue()).put(body.array());
+    }
+
+    private static int recordOffset(byte[] segment, int index) {
+        ByteBuffer buffer = ByteBuffer.wrap(segment);
+        int offset = 0;
+        for (int i = 0; i < index; i++) offset += 24 + buffer.getInt(offset);
+        return offset;
+    }
+
+    private static long firstSeq(Path segment) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(segment)).getLong(8);
+    }
+}
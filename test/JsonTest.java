@@ -0,0 +1,136 @@
+package javaChat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Json, JsonWriter and JsonReader must agree: the writer escapes exactly as Json.quote does, stringLength
+// predicts the writer's output, and the reader turns either back into the original text
+class JsonTest {
+    private static final String[] SAMPLES = {
+        "",
+        "plain ascii",
+        "quote \" backslash \\ slash /",
+        "new\nline\rreturn\ttab",
+        "controls \u0000 \u0001 \u001f \u007f",
+        "separators \u2028 and \u2029 but not \u2027 or \u202a",
+        "café 你好 😀",
+        "\u2028",
+    };
+
+    private static String written(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter out = new JsonWriter(bytes, 16)) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            out.string(utf8, 0, utf8.length);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String writtenFromBuffer(String text, boolean withLength) throws IOException {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length + 3);
+        direct.position(3);
+        direct.put(utf8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter out = new JsonWriter(bytes, 16)) {
+            if (withLength) out.string(direct, 3, utf8.length, JsonWriter.stringLength(utf8));
+            else out.string(direct, 3, utf8.length);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String read(String json) throws IOException {
+        try (JsonReader in = new JsonReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
+            return in.nextString();
+        }
+    }
+
+    @Test
+    void quoteEscapesWhatJsonAndJavaScriptRequire() {
+        assertEquals("\"a\\\"b\\\\c\"", Json.quote("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\\u0000\\u001f\"", Json.quote("\n\r\t\u0000\u001f"));
+        assertEquals("\"\\u2028\\u2029\"", Json.quote("\u2028\u2029"));
+        assertEquals("\"café 😀\"", Json.quote("café 😀"));
+    }
+
+    @Test
+    void writerMatchesQuoteAndItsPredictedLength() throws IOException {
+        for (String text : SAMPLES) {
+            String expected = Json.quote(text);
+            assertEquals(expected, written(text), text);
+            assertEquals(expected, writtenFromBuffer(text, true), text);
+            assertEquals(expected, writtenFromBuffer(text, false), text);
+            assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, JsonWriter.stringLength(text.getBytes(StandardCharsets.UTF_8)), text);
+        }
+    }
+
+    @Test
+    void bufferedTextIsNotSplitInsideACharacter() throws IOException {
+        // Pieces of 4096 bytes: put multi-byte characters and separators across every boundary
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 20_000) text.append("ab\u2028cé😀\"");
+        assertEquals(Json.quote(text.toString()), writtenFromBuffer(text.toString(), false));
+    }
+
+    @Test
+    void numbers() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter out = new JsonWriter(bytes, 32)) {
+            for (long value : new long[] { 0, 9, 10, -1, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE }) {
+                out.number(value).raw(',');
+                assertEquals(Long.toString(value).length(), JsonWriter.digits(value));
+            }
+        }
+        assertEquals("0,9,10,-1,1234567890123," + Long.MAX_VALUE + "," + Long.MIN_VALUE + ",", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void readerRoundTripsEveryEscape() throws IOException {
+        for (String text : SAMPLES) {
+            assertEquals(text, read(Json.quote(text)), text);
+        }
+        assertEquals("é/\b\f", read("\"\\u00e9\\/\\b\\f\""));
+        // Longer than the reader's buffer, so it refills in the middle of characters
+        String longText = "ü😀\n".repeat(5000);
+        assertEquals(longText, read(Json.quote(longText)));
+    }
+
+    @Test
+    void readerWalksObjectsAndSkipsWhatItDoesNotNeed() throws IOException {
+        String json = " { \"skip\" : {\"a\":[1,2,{\"b\":\"]\"}],\"c\":true} , \"messages\":[{\"user\":\"bob\",\"time\":-17},{}],\"next\":42}";
+        try (JsonReader in = new JsonReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
+            in.beginObject();
+            assertEquals("skip", in.nextName());
+            in.skipValue();
+            assertTrue(in.hasNext());
+            assertEquals("messages", in.nextName());
+            in.beginArray();
+            in.beginObject();
+            assertEquals("user", in.nextName());
+            assertEquals("bob", in.nextString());
+            assertTrue(in.hasNext());
+            assertEquals("time", in.nextName());
+            assertEquals(-17, in.nextLong());
+            assertFalse(in.hasNext());
+            in.endObject();
+            assertTrue(in.hasNext());
+            in.skipValue();
+            assertFalse(in.hasNext());
+            in.endArray();
+            assertTrue(in.hasNext());
+            assertEquals("next", in.nextName());
+            assertEquals(42, in.nextLong());
+            in.endObject();
+        }
+    }
+
+    @Test
+    void readerRejectsMalformedInput() {
+        assertThrows(IOException.class, () -> read("\"unterminated"));
+        assertThrows(IOException.class, () -> read("42"));
+    }
+}
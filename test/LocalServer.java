@@ -0,0 +1,57 @@
+package javaChat;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+// One server per test JVM, started the way --train starts it: loopback, no journal, no rate limits.
+// ChatHttpServer keeps its state in statics, so test classes share this instance rather than each starting one.
+final class LocalServer {
+    static final HttpClient CLIENT = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private static String base;
+    private static int webSocketPort;
+
+    private LocalServer() {}
+
+    static synchronized String base() {
+        if (base == null) {
+            try {
+                System.setProperty("chat.journal.dir", "");
+                System.setProperty("chat.warmupMillis", "0");
+                for (String limit : new String[] { "send.user", "send.address", "send.global", "poll.address", "poll.global" }) {
+                    System.setProperty("chat.limit." + limit + ".perSecond", "0");
+                }
+                try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                    webSocketPort = probe.getLocalPort();
+                }
+                System.setProperty("chat.ws.port", String.valueOf(webSocketPort));
+                int port = ChatHttpServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).getAddress().getPort();
+                base = "http://127.0.0.1:" + port;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return base;
+    }
+
+    static int webSocketPort() {
+        base();
+        return webSocketPort;
+    }
+
+    static HttpResponse<String> get(String path, String... headers) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base() + path));
+        for (int i = 0; i < headers.length; i += 2) request.header(headers[i], headers[i + 1]);
+        return CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    static HttpResponse<String> post(String path) throws Exception {
+        return CLIENT.send(HttpRequest.newBuilder(URI.create(base() + path)).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,73 @@
+package javaChat;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongPollTest {
+    private static Room room(String name) throws Exception {
+        assertEquals(200, LocalServer.post("/send?room=" + name + "&user=alice&msg=seed").statusCode());
+        return ChatHttpServer.rooms.find(name);
+    }
+
+    private static CompletableFuture<HttpResponse<String>> poll(String room, long since, long waitMillis) {
+        return LocalServer.CLIENT.sendAsync(HttpRequest.newBuilder(URI.create(LocalServer.base() + "/messages?room=" + room
+                + "&since=" + since + "&wait=" + waitMillis)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static void awaitParked(Room room, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (room.longPoll.parked() < count && System.nanoTime() < deadline) Thread.sleep(5);
+        assertEquals(count, room.longPoll.parked());
+    }
+
+    @Test
+    void everyParkedPollIsAnsweredByTheNextSend() throws Exception {
+        Room room = room("longpoll-wake");
+        long since = room.log.next();
+        List<CompletableFuture<HttpResponse<String>>> polls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) polls.add(poll("longpoll-wake", since, 30_000));
+        awaitParked(room, 10);
+        assertEquals(200, LocalServer.post("/send?room=longpoll-wake&user=bob&msg=wake").statusCode());
+        for (CompletableFuture<HttpResponse<String>> poll : polls) {
+            HttpResponse<String> response = poll.get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.statusCode());
+            MessagesHandlerTest.Page page = new MessagesHandlerTest.Page(response.body());
+            assertEquals(List.of("wake"), page.texts);
+            assertEquals(since + 1, page.next);
+        }
+        assertEquals(0, room.longPoll.parked());
+    }
+
+    @Test
+    void aPollWithNothingNewAnswersEmptyWhenItsWaitRunsOut() throws Exception {
+        Room room = room("longpoll-timeout");
+        long since = room.log.next();
+        long started = System.nanoTime();
+        HttpResponse<String> response = poll("longpoll-timeout", since, 300).get(5, TimeUnit.SECONDS);
+        long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+        assertEquals(200, response.statusCode());
+        assertTrue(elapsedMillis >= 250, "answered after " + elapsedMillis + " ms");
+        MessagesHandlerTest.Page page = new MessagesHandlerTest.Page(response.body());
+        assertEquals(List.of(), page.texts);
+        assertEquals(since, page.next);
+        assertEquals(0, room.longPoll.parked());
+    }
+
+    @Test
+    void aPollThatIsBehindOrAheadIsAnsweredAtOnce() throws Exception {
+        Room room = room("longpoll-resync");
+        long next = room.log.next();
+        MessagesHandlerTest.Page behind = new MessagesHandlerTest.Page(poll("longpoll-resync", next - 1, 30_000).get(5, TimeUnit.SECONDS).body());
+        assertEquals(List.of("seed"), behind.texts);
+        // A cursor from before a restart: the client learns the current one
+        MessagesHandlerTest.Page ahead = new MessagesHandlerTest.Page(poll("longpoll-resync", next + 100, 30_000).get(5, TimeUnit.SECONDS).body());
+        assertEquals(next, ahead.next);
+        assertEquals(0, room.longPoll.parked());
+    }
+}
@@ -0,0 +1,209 @@
+package javaChat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+    private static final int SEGMENT = MessageLog.SEGMENT_SIZE;
+
+    private static List<Long> seqs(MessageLog log, long from) {
+        List<Long> seqs = new ArrayList<>();
+        log.read(from, (seq, message) -> seqs.add(seq));
+        return seqs;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void appendsAndReadsBack(boolean offHeap) {
+        MessageLog log = new MessageLog(0, 0, 0, 0, offHeap);
+        assertEquals(0, log.append(Message.of("alice", "hello")));
+        assertEquals(1, log.append(Message.of("bob", "café \"quoted\"")));
+        assertEquals(2, log.append(Message.of("alice", "😀")));
+        assertEquals(3, log.next());
+        assertEquals("bob", log.get(1).user());
+        assertEquals("café \"quoted\"", log.get(1).text());
+        assertEquals("😀", log.get(2).text());
+        assertNull(log.get(3));
+        assertEquals(List.of(1L, 2L), seqs(log, 1));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void crossesSegmentsAndTrimsWholeSegmentsByCount(boolean offHeap) {
+        MessageLog log = new MessageLog(2 * SEGMENT, 0, 0, 0, offHeap);
+        for (int i = 0; i < 4 * SEGMENT; i++) log.append(Message.of("u", "m" + i));
+        // The head segment goes once a full segment beyond the limit is retained
+        assertEquals(4L * SEGMENT, log.next());
+        assertTrue(log.first() > 0);
+        assertEquals(0, log.first() % SEGMENT);
+        assertTrue(log.next() - log.first() <= 3L * SEGMENT);
+        assertNull(log.get(log.first() - 1));
+        assertEquals("m" + log.first(), log.get(log.first()).text());
+        // A read from before the retained range starts at its beginning
+        assertEquals(log.first(), seqs(log, 0).get(0));
+    }
+
+    @Test
+    void trimsByBytes() {
+        MessageLog log = new MessageLog(0, 2L * SEGMENT * 10, 0);
+        for (int i = 0; i < 4 * SEGMENT; i++) log.append(Message.of("u", "0123456789"));
+        assertTrue(log.first() > 0);
+        assertTrue((log.next() - log.first()) * 10 <= 3L * SEGMENT * 10);
+    }
+
+    @Test
+    void readStopsAtTheGivenEnd() {
+        MessageLog log = new MessageLog(0, 0, 0);
+        for (int i = 0; i < 10; i++) log.append(Message.of("u", "m" + i));
+        List<Long> seen = new ArrayList<>();
+        assertEquals(7, log.read(3, 7, (seq, message) -> seen.add(seq)));
+        assertEquals(List.of(3L, 4L, 5L, 6L), seen);
+        assertEquals(10, log.read(3, 100, (seq, message) -> { }));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void skipToKeepsHistoryAcrossAShortGap(boolean offHeap) {
+        MessageLog log = new MessageLog(0, 0, 0, 0, offHeap);
+        for (int i = 0; i < 5; i++) log.append(Message.of("u", "before" + i));
+        log.skipTo(5 + SEGMENT + 10);
+        log.append(Message.of("u", "after"));
+        assertEquals(0, log.first());
+        assertEquals("before4", log.get(4).text());
+        assertNull(log.get(5));
+        assertNull(log.get(5 + SEGMENT));
+        assertEquals("after", log.get(5 + SEGMENT + 10).text());
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L, 5L + SEGMENT + 10), seqs(log, 0));
+        List<Long> raw = new ArrayList<>();
+        log.readRaw(0, Long.MAX_VALUE, new Collector(raw, new ArrayList<>()));
+        assertEquals(seqs(log, 0), raw);
+    }
+
+    @Test
+    void skipToStartsAfreshAfterALongGapOrOnAnEmptyLog() {
+        MessageLog empty = new MessageLog(0, 0, 0);
+        empty.skipTo(1000);
+        assertEquals(1000, empty.first());
+        assertEquals(1000, empty.append(Message.of("u", "x")));
+
+        MessageLog log = new MessageLog(0, 0, 0);
+        log.append(Message.of("u", "old"));
+        log.skipTo(1 + MessageLog.MAX_HOLE + 1);
+        assertEquals(1 + MessageLog.MAX_HOLE + 1, log.first());
+        assertNull(log.get(0));
+        // Never backwards
+        log.skipTo(5);
+        assertEquals(1 + MessageLog.MAX_HOLE + 1, log.next());
+    }
+
+    @Test
+    void coldSegmentsAreCompressedAndStillReadable() throws Exception {
+        MessageLog log = new MessageLog(0, 0, 0, 1, false);
+        for (int i = 0; i < 3 * SEGMENT; i++) log.append(Message.of("user" + (i % 7), "message " + i + " ü "));
+        log.skipTo(3L * SEGMENT + 5);
+        log.append(Message.of("late", "after the hole"));
+        long loads = MessageLog.coldLoads.sum();
+        // The compactor runs in the background; a cold read decompresses, a hot one does not
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (MessageLog.coldLoads.sum() == loads && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            log.read(0, 1, (seq, message) -> { });
+        }
+        assertTrue(MessageLog.coldLoads.sum() > loads, "the first segment was never compressed");
+        for (long seq = 0; seq < 3 * SEGMENT; seq += 97) {
+            Message message = log.get(seq);
+            assertEquals("user" + (seq % 7), message.user());
+            assertEquals("message " + seq + " ü ", message.text());
+        }
+        assertNull(log.get(3L * SEGMENT));
+        assertEquals("after the hole", log.get(3L * SEGMENT + 5).text());
+        assertEquals(3 * SEGMENT + 1, seqs(log, 0).size());
+    }
+
+    @Test
+    void expireAgesOutAQuietLogWithoutANewSegment() {
+        long now = System.currentTimeMillis();
+        MessageLog log = new MessageLog(0, 0, 60_000);
+        for (int i = 0; i < 3; i++) log.append(Message.restore("u", "old" + i, now - 120_000));
+        log.expire(now - 90_000);
+        assertEquals(0, log.first());
+        assertEquals("old0", log.get(0).text());
+
+        log.expire(now);
+        assertEquals(3, log.first());
+        assertEquals(3, log.next());
+        assertNull(log.get(2));
+        assertEquals(List.of(), seqs(log, 0));
+        // Sequence numbers carry on where they were
+        assertEquals(3, log.append(Message.restore("u", "new", now)));
+        assertEquals(List.of(3L), seqs(log, 0));
+    }
+
+    @Test
+    void expireDropsOldHeadSegmentsAndKeepsRecentOnes() {
+        long now = System.currentTimeMillis();
+        MessageLog log = new MessageLog(0, 0, 60_000);
+        // Still young when the second segment starts, so the append keeps them
+        for (int i = 0; i < SEGMENT; i++) log.append(Message.restore("u", "old" + i, now - 30_000));
+        for (int i = 0; i < 5; i++) log.append(Message.restore("u", "new" + i, now));
+        assertEquals(0, log.first());
+        log.expire(now + 45_000);
+        assertEquals(SEGMENT, log.first());
+        assertEquals("new0", log.get(SEGMENT).text());
+        assertEquals(5, seqs(log, 0).size());
+        // Nothing else is old enough yet
+        log.expire(now + 45_000);
+        assertEquals(SEGMENT, log.first());
+    }
+
+    @Test
+    void expireWithoutAnAgeLimitKeepsEverything() {
+        MessageLog log = new MessageLog(0, 0, 0);
+        log.append(Message.restore("u", "ancient", 0));
+        log.expire(System.currentTimeMillis());
+        assertEquals("ancient", log.get(0).text());
+    }
+
+    @Test
+    void offHeapReadRawHandsOutTheStoredBytes() {
+        MessageLog log = new MessageLog(0, 0, 0, 0, true);
+        String[] texts = { "plain", "tab\there", "x".repeat(100_000) };
+        for (String text : texts) log.append(Message.of("bob", text));
+        List<Long> seqs = new ArrayList<>();
+        List<String> read = new ArrayList<>();
+        assertEquals(3, log.readRaw(0, Long.MAX_VALUE, new Collector(seqs, read)));
+        assertEquals(List.of(0L, 1L, 2L), seqs);
+        assertEquals(List.of(texts), read);
+        assertEquals(JsonWriter.stringLength("tab\there".getBytes(StandardCharsets.UTF_8)), log.get(1).textJsonLength);
+    }
+
+    private static final class Collector implements MessageLog.RawVisitor {
+        final List<Long> seqs;
+        final List<String> texts;
+
+        Collector(List<Long> seqs, List<String> texts) {
+            this.seqs = seqs;
+            this.texts = texts;
+        }
+
+        @Override
+        public void visit(long seq, User user, long time, byte[] text, int textJsonLength) {
+            seqs.add(seq);
+            texts.add(new String(text, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void visit(long seq, User user, long time, ByteBuffer chunk, int offset, int length, int textJsonLength) {
+            byte[] text = new byte[length];
+            chunk.get(offset, text);
+            seqs.add(seq);
+            texts.add(new String(text, StandardCharsets.UTF_8));
+            assertEquals(JsonWriter.stringLength(text), textJsonLength);
+        }
+    }
+}
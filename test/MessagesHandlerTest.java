@@ -0,0 +1,140 @@
+package javaChat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessagesHandlerTest {
+    private static final String ROOM = "messages-test";
+    private static long first;
+
+    @BeforeAll
+    static void fill() throws Exception {
+        assertEquals(200, LocalServer.post("/send?room=" + ROOM + "&user=alice&msg=m0").statusCode());
+        first = ChatHttpServer.rooms.find(ROOM).log.next() - 1;
+        for (int i = 1; i < 7; i++) assertEquals(200, LocalServer.post("/send?room=" + ROOM + "&user=alice&msg=m" + i).statusCode());
+    }
+
+    // The texts of a /messages response and its "next" and "before" cursors
+    static final class Page {
+        final String body;
+        final List<String> texts = new ArrayList<>();
+        long next = -1;
+        long before = -1;
+
+        Page(String body) throws IOException {
+            this.body = body;
+            try (JsonReader json = new JsonReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)))) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    if (name.equals("messages")) {
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            json.beginObject();
+                            while (json.hasNext()) {
+                                if (json.nextName().equals("text")) texts.add(json.nextString());
+                                else json.skipValue();
+                            }
+                            json.endObject();
+                        }
+                        json.endArray();
+                    } else if (name.equals("next")) {
+                        next = json.nextLong();
+                    } else if (name.equals("before")) {
+                        before = json.nextLong();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+            }
+        }
+
+        boolean more() {
+            return body.contains("\"more\":true");
+        }
+    }
+
+    static Page page(String query) throws Exception {
+        HttpResponse<String> response = LocalServer.get("/messages?room=" + ROOM + "&" + query);
+        assertEquals(200, response.statusCode());
+        return new Page(response.body());
+    }
+
+    @Test
+    void aCappedResponseSaysThereIsMoreAndWhereToContinue() throws Exception {
+        int cap = ChatHttpServer.maxMessages;
+        try {
+            ChatHttpServer.maxMessages = 3;
+            Page page = page("since=" + first);
+            assertEquals(List.of("m0", "m1", "m2"), page.texts);
+            assertTrue(page.more());
+            assertEquals(first + 3, page.next);
+            page = page("since=" + page.next);
+            assertEquals(List.of("m3", "m4", "m5"), page.texts);
+            assertTrue(page.more());
+            page = page("since=" + page.next);
+            assertEquals(List.of("m6"), page.texts);
+            assertFalse(page.more());
+            assertEquals(first + 7, page.next);
+            // Caught up: an empty page that still says where to continue
+            page = page("since=" + page.next);
+            assertEquals(List.of(), page.texts);
+            assertFalse(page.more());
+            assertEquals(first + 7, page.next);
+        } finally {
+            ChatHttpServer.maxMessages = cap;
+        }
+        Page all = page("since=" + first);
+        assertEquals(7, all.texts.size());
+        assertFalse(all.more());
+    }
+
+    @Test
+    void scrollbackPagesWalkBackToTheStart() throws Exception {
+        // Anything past the end fetches the latest page, and "next" says where to follow new messages from
+        Page page = page("before=" + Long.MAX_VALUE + "&limit=3");
+        assertEquals(List.of("m4", "m5", "m6"), page.texts);
+        assertEquals(first + 4, page.before);
+        assertTrue(page.more());
+        assertEquals(first + 7, page.next);
+        page = page("before=" + page.before + "&limit=3");
+        assertEquals(List.of("m1", "m2", "m3"), page.texts);
+        assertEquals(first + 1, page.before);
+        assertTrue(page.more());
+        page = page("before=" + page.before + "&limit=3");
+        assertEquals(List.of("m0"), page.texts);
+        assertEquals(first, page.before);
+        assertFalse(page.more());
+    }
+
+    @Test
+    void largeResponsesAreGzippedForClientsThatAcceptIt() throws Exception {
+        String room = "messages-gzip-test";
+        String text = "x".repeat(1000);
+        for (int i = 0; i < 20; i++) assertEquals(200, LocalServer.post("/send?room=" + room + "&user=bob&msg=" + text).statusCode());
+        HttpResponse<byte[]> response = LocalServer.CLIENT.send(HttpRequest.newBuilder(URI.create(LocalServer.base() + "/messages?room=" + room))
+                .header("Accept-Encoding", "gzip").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, response.statusCode());
+        assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+        assertTrue(response.body().length < 20 * 1000);
+        Page page;
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+            page = new Page(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(20, page.texts.size());
+        assertEquals(text, page.texts.get(19));
+        // Small ones, and clients without gzip, get a plain body with a Content-Length
+        HttpResponse<String> plain = LocalServer.get("/messages?room=" + room);
+        assertTrue(plain.headers().firstValue("Content-Encoding").isEmpty());
+        assertEquals(String.valueOf(plain.body().getBytes(StandardCharsets.UTF_8).length), plain.headers().firstValue("Content-Length").orElse(null));
+    }
+}
@@ -0,0 +1,78 @@
+package javaChat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceTest {
+    @Test
+    void joinsBumpTheVersionAndRefreshesDoNot() {
+        Presence presence = new Presence(60_000, 1000, 16);
+        long start = presence.version();
+        presence.touch("alice");
+        presence.touch("bob");
+        assertEquals(start + 2, presence.version());
+        presence.touch("alice");
+        assertEquals(start + 2, presence.version());
+        assertEquals(2, presence.size());
+        assertEquals("{\"version\":" + (start + 2) + ",\"users\":[", presence.snapshotJson().substring(0, presence.snapshotJson().indexOf('[') + 1));
+        assertTrue(presence.snapshotJson().contains("\"alice\""));
+        assertArrayEquals(presence.snapshotJson().getBytes(), presence.snapshotBytes());
+    }
+
+    @Test
+    void deltaListsTheNetChangesSinceAVersion() {
+        Presence presence = new Presence(60_000, 1000, 16);
+        long start = presence.version();
+        presence.touch("alice");
+        long afterAlice = presence.version();
+        presence.touch("bob");
+        presence.touch("quote\"d");
+        assertEquals("{\"version\":" + (start + 3) + ",\"joined\":[\"quote\\\"d\",\"bob\"],\"left\":[]}", presence.deltaJson(afterAlice));
+        assertEquals("{\"version\":" + (start + 3) + ",\"joined\":[],\"left\":[]}", presence.deltaJson(start + 3));
+    }
+
+    @Test
+    void anUncoveredVersionGetsTheFullSnapshot() {
+        Presence presence = new Presence(60_000, 1000, 2);
+        long start = presence.version();
+        for (int i = 0; i < 5; i++) presence.touch("user" + i);
+        // Only the last two changes are kept
+        assertEquals(presence.snapshotJson(), presence.deltaJson(start + 1));
+        assertTrue(presence.deltaJson(start + 3).contains("\"joined\":[\"user4\",\"user3\"]"));
+        // A version from the future, e.g. from before a restart with a slower clock
+        assertEquals(presence.snapshotJson(), presence.deltaJson(start + 100));
+    }
+
+    @Test
+    void idleUsersLeaveAndComeBack() throws InterruptedException {
+        Presence presence = new Presence(100, 10, 16);
+        List<String> changes = new CopyOnWriteArrayList<>();
+        presence.addListener((user, joined) -> changes.add((joined ? "+" : "-") + user));
+        presence.touch("alice");
+        long joined = presence.version();
+        long deadline = System.currentTimeMillis() + 5000;
+        // Listeners hear of the leave just after the user is gone
+        while (changes.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(0, presence.size());
+        assertEquals(joined + 1, presence.version());
+        assertEquals("{\"version\":" + (joined + 1) + ",\"joined\":[],\"left\":[\"alice\"]}", presence.deltaJson(joined));
+        // The wheel stopped while the room was empty and starts again on the next join
+        presence.touch("alice");
+        assertEquals(1, presence.size());
+        assertEquals(List.of("+alice", "-alice", "+alice"), changes);
+    }
+
+    @Test
+    void activityKeepsAUserPresent() throws InterruptedException {
+        Presence presence = new Presence(200, 10, 16);
+        presence.touch("alice");
+        long version = presence.version();
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(25);
+            presence.touch("alice");
+        }
+        assertEquals(1, presence.size());
+        assertEquals(version, presence.version());
+    }
+}
@@ -0,0 +1,112 @@
+package javaChat;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+    @Test
+    void allowsTheBurstThenRefusesWithTheWait() {
+        RateLimiter limiter = new RateLimiter("test", 10, 3, 100);
+        for (int i = 0; i < 3; i++) assertEquals(0, limiter.acquire("a", 1));
+        long wait = limiter.acquire("a", 1);
+        // One token comes back every 100 ms
+        assertTrue(wait > 0 && wait <= 100, "wait " + wait);
+        assertEquals(1, limiter.limited());
+        // Buckets are per key
+        assertEquals(0, limiter.acquire("b", 1));
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("test", 100, 1, 100);
+        assertEquals(0, limiter.acquire("a", 1));
+        assertTrue(limiter.acquire("a", 1) > 0);
+        Thread.sleep(30);
+        assertEquals(0, limiter.acquire("a", 1));
+    }
+
+    @Test
+    void aCostAboveTheBurstNeedsAFullBucketAndIsPaidBack() {
+        RateLimiter limiter = new RateLimiter("test", 10, 2, 100);
+        assertEquals(0, limiter.acquire("a", 5));
+        // Five tokens were taken from a bucket of two: the next request waits for the overdraft too
+        long wait = limiter.acquire("a", 1);
+        assertTrue(wait > 300, "wait " + wait);
+
+        RateLimiter partial = new RateLimiter("test", 10, 2, 100);
+        assertEquals(0, partial.acquire("a", 1));
+        assertTrue(partial.acquire("a", 5) > 0);
+    }
+
+    @Test
+    void aZeroRateDisablesTheLimiter() {
+        RateLimiter limiter = new RateLimiter("test", 0, 1, 1);
+        for (int i = 0; i < 1000; i++) assertEquals(0, limiter.acquire("key" + i, 100));
+        assertEquals(0, limiter.keys());
+    }
+
+    @Test
+    void aFullTableSweepsIdleBuckets() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("test", 100, 1, 2);
+        assertEquals(0, limiter.acquire("a", 1));
+        assertEquals(0, limiter.acquire("b", 1));
+        // Both buckets are full again after 10 ms; the sweep at the next new key drops them
+        Thread.sleep(30);
+        assertEquals(0, limiter.acquire("c", 1));
+        assertEquals(1, limiter.keys());
+    }
+
+    @Test
+    void aFullTableOfBusyBucketsRefusesNewKeysWithoutForgivingDebt() {
+        RateLimiter limiter = new RateLimiter("test", 1, 1, 2);
+        assertEquals(0, limiter.acquire("a", 1));
+        assertEquals(0, limiter.acquire("b", 1));
+        long wait = limiter.acquire("c", 1);
+        assertTrue(wait > 0 && wait <= 1000, "wait " + wait);
+        assertEquals(2, limiter.keys());
+        // The existing callers still owe their tokens
+        assertTrue(limiter.acquire("a", 1) > 0);
+        assertTrue(limiter.acquire("b", 1) > 0);
+    }
+
+    @Test
+    void aRefundGivesTheTokensBack() {
+        RateLimiter limiter = new RateLimiter("test", 1, 2, 10);
+        assertEquals(0, limiter.acquire("a", 2));
+        assertTrue(limiter.acquire("a", 1) > 0);
+        limiter.refund("a", 1);
+        assertEquals(0, limiter.acquire("a", 1));
+        // Unknown keys and disabled limiters have nothing to give back
+        limiter.refund("nobody", 1);
+        assertEquals(1, limiter.keys());
+        new RateLimiter("off", 0, 1, 1).refund("a", 1);
+    }
+
+    @Test
+    void aUserOverItsLimitDoesNotSpendItsAddresssBudget() {
+        RateLimiter user = ChatHttpServer.sendPerUser;
+        RateLimiter address = ChatHttpServer.sendPerAddress;
+        RateLimiter global = ChatHttpServer.sendGlobal;
+        try {
+            ChatHttpServer.sendPerUser = new RateLimiter("user", 1, 2, 10);
+            ChatHttpServer.sendPerAddress = new RateLimiter("address", 1, 3, 10);
+            ChatHttpServer.sendGlobal = new RateLimiter("global", 0, 1, 1);
+            assertEquals(0, ChatHttpServer.limitSend("flood", "10.0.0.1", 2));
+            // Behind the same address: the refused user is not charged to it
+            for (int i = 0; i < 10; i++) assertTrue(ChatHttpServer.limitSend("flood", "10.0.0.1", 1) > 0);
+            assertEquals(0, ChatHttpServer.limitSend("neighbour", "10.0.0.1", 1));
+
+            // Nor is a request the global bucket refuses
+            ChatHttpServer.sendPerAddress = new RateLimiter("address", 1, 3, 10);
+            ChatHttpServer.sendGlobal = new RateLimiter("global", 1, 1, 1);
+            ChatHttpServer.sendGlobal.acquire("", 1);
+            assertTrue(ChatHttpServer.limitSend("quiet", "10.0.0.2", 3) > 0);
+            ChatHttpServer.sendGlobal = new RateLimiter("global", 0, 1, 1);
+            assertEquals(0, ChatHttpServer.limitSend("quiet", "10.0.0.2", 2));
+            assertEquals(0, ChatHttpServer.limitSend("other", "10.0.0.2", 1));
+        } finally {
+            ChatHttpServer.sendPerUser = user;
+            ChatHttpServer.sendPerAddress = address;
+            ChatHttpServer.sendGlobal = global;
+        }
+    }
+}
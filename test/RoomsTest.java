@@ -0,0 +1,59 @@
+package javaChat;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoomsTest {
+    private static boolean exists(String room) {
+        LocalServer.base();
+        return !ChatHttpServer.rooms.find(room).vacant();
+    }
+
+    private static HttpResponse<String> postBody(String path, String contentType, String body) throws Exception {
+        return LocalServer.CLIENT.send(HttpRequest.newBuilder(URI.create(LocalServer.base() + path))
+                .header("Content-Type", contentType).POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void readsSeeAVacantRoomAndWritesCreateOneUpToTheMaximum() throws Exception {
+        Rooms rooms = new Rooms(null, 2, Runnable::run);
+        assertTrue(rooms.find("quiet").vacant());
+        assertTrue(rooms.all().isEmpty());
+        Room main = rooms.get(null);
+        assertEquals(Rooms.DEFAULT, main.name);
+        assertSame(main, rooms.find(""));
+        assertSame(rooms.get("other"), rooms.get("other"));
+        IllegalArgumentException full = assertThrows(IllegalArgumentException.class, () -> rooms.get("third"));
+        assertEquals("Too many rooms", full.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> rooms.find("no spaces"));
+        assertThrows(IllegalArgumentException.class, () -> rooms.get("x".repeat(33)));
+        assertEquals(2, rooms.all().size());
+    }
+
+    @Test
+    void onlyAnAcceptedSendWithTextCreatesTheRoom() throws Exception {
+        String room = "rooms-created";
+        assertEquals(200, LocalServer.get("/messages?room=" + room).statusCode());
+        assertEquals(200, LocalServer.post("/send?room=" + room + "&user=u&msg=").statusCode());
+        assertEquals(200, postBody("/send?room=" + room + "&user=u", "application/json", "[\"\", \"\"]").statusCode());
+        assertEquals(400, postBody("/send?room=" + room + "&user=u", "application/json", "[1]").statusCode());
+        assertEquals(413, postBody("/send?room=" + room + "&user=u", "text/plain", "x".repeat((1 << 20) + 1)).statusCode());
+        assertFalse(exists(room));
+
+        RateLimiter unlimited = ChatHttpServer.sendPerUser;
+        try {
+            ChatHttpServer.sendPerUser = new RateLimiter("test", 0.001, 1, 10);
+            ChatHttpServer.sendPerUser.acquire("flood", 1);
+            assertEquals(429, LocalServer.post("/send?room=" + room + "&user=flood&msg=hi").statusCode());
+        } finally {
+            ChatHttpServer.sendPerUser = unlimited;
+        }
+        assertFalse(exists(room));
+
+        assertEquals(200, LocalServer.post("/send?room=" + room + "&user=u&msg=hello").statusCode());
+        assertTrue(exists(room));
+    }
+}
@@ -0,0 +1,81 @@
+package javaChat;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+    // Indexing runs on a background thread; waits until the search finds at least "expected" messages
+    private static long[] await(SearchIndex index, String query, String author, int limit, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        long[] found;
+        while ((found = index.search(query, author, limit)).length < expected && System.nanoTime() < deadline) Thread.sleep(5);
+        return found;
+    }
+
+    @Test
+    void tokenizesIntoLowerCasedWords() {
+        assertEquals(List.of("hello", "wörld", "42", "x"), SearchIndex.tokenize("Hello, WÖRLD! 42 x"));
+        assertEquals(List.of(), SearchIndex.tokenize(" ... "));
+        // Overlong runs are not indexed
+        assertEquals(List.of("ok"), SearchIndex.tokenize("a".repeat(65) + " ok"));
+    }
+
+    @Test
+    void findsTheNewestMatchesOfAllTermsAndTheAuthor() throws InterruptedException {
+        MessageLog log = new MessageLog(0, 0, 0);
+        SearchIndex index = new SearchIndex(log);
+        log.append(Message.of("alice", "the quick brown fox"));
+        log.append(Message.of("bob", "the lazy dog"));
+        // Already in the log when the index starts, like a replayed journal
+        index.start();
+        log.append(Message.of("alice", "Quick thinking"));
+        log.append(Message.of("bob", "quick brown bread"));
+        assertArrayEquals(new long[] { 3, 2, 0 }, await(index, "quick", null, 10, 3));
+        assertArrayEquals(new long[] { 3, 0 }, index.search("BROWN quick", null, 10));
+        assertArrayEquals(new long[] { 2, 0 }, index.search("quick", "alice", 10));
+        assertArrayEquals(new long[] { 3, 1 }, index.search("", "bob", 10));
+        assertArrayEquals(new long[] { 3 }, index.search("quick", null, 1));
+        assertArrayEquals(new long[0], index.search("missing quick", null, 10));
+        assertArrayEquals(new long[0], index.search("quick", "carol", 10));
+        assertArrayEquals(new long[0], index.search("", null, 10));
+    }
+
+    @Test
+    void postingsSurviveLargeGapsAndManyBlocks() throws InterruptedException {
+        MessageLog log = new MessageLog(0, 0, 0);
+        SearchIndex index = new SearchIndex(log);
+        index.start();
+        // Deltas of one, two and three varint bytes, over more entries than one block holds
+        long[] gaps = { 1, 127, 128, 300, 16_383, 16_384, 60_000 };
+        int expected = 300;
+        for (int i = 0; i < expected; i++) {
+            long gap = i < gaps.length ? gaps[i] : gaps[i % (gaps.length - 1)];
+            if (gap > 1) log.skipTo(log.next() + gap - 1);
+            log.append(Message.of("u", "needle " + (i % 2 == 0 ? "even" : "odd")));
+            log.append(Message.of("u", "hay"));
+        }
+        long[] all = await(index, "needle", null, 10_000, expected);
+        assertEquals(expected, all.length);
+        for (int i = 0; i < all.length; i++) {
+            assertEquals("needle", log.get(all[i]).text().substring(0, 6));
+            if (i > 0) assertTrue(all[i] < all[i - 1]);
+        }
+        long[] even = index.search("needle even", null, 10_000);
+        for (long seq : even) assertTrue(log.get(seq).text().endsWith("even"));
+        assertEquals(expected - index.search("needle odd", null, 10_000).length, even.length);
+    }
+
+    @Test
+    void trimmedMessagesAreNotReturned() throws InterruptedException {
+        MessageLog log = new MessageLog(MessageLog.SEGMENT_SIZE, 0, 0);
+        SearchIndex index = new SearchIndex(log);
+        index.start();
+        for (int i = 0; i < 4 * MessageLog.SEGMENT_SIZE; i++) log.append(Message.of("u", "word " + i));
+        long last = 4L * MessageLog.SEGMENT_SIZE - 1;
+        await(index, "word " + last, null, 1, 1);
+        long[] found = index.search("word", null, 100_000);
+        assertTrue(found.length > 0);
+        for (long seq : found) assertTrue(seq >= log.first());
+        assertEquals(log.next() - log.first(), found.length);
+    }
+}
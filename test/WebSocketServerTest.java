@@ -0,0 +1,192 @@
+package javaChat;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class WebSocketServerTest {
+    private static final String ROOM = "ws-test";
+
+    @BeforeAll
+    static void createRoom() throws Exception {
+        assertEquals(200, LocalServer.post("/send?room=" + ROOM + "&user=setup&msg=first").statusCode());
+    }
+
+    // One client connection: raw frames out, decoded server frames in
+    private static final class Client implements Closeable {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final String status;
+
+        Client(String origin) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), LocalServer.webSocketPort());
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+            out.write(("GET /ws?room=" + ROOM + "&user=tester HTTP/1.1\r\nHost: localhost:" + LocalServer.webSocketPort()
+                    + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n" + (origin == null ? "" : "Origin: " + origin + "\r\n") + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            StringBuilder header = new StringBuilder();
+            while (!header.toString().endsWith("\r\n\r\n")) header.append((char) in.readUnsignedByte());
+            status = header.substring(0, header.indexOf("\r\n"));
+        }
+
+        void send(int b0, byte[] payload, boolean masked) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(b0);
+            int mask = masked ? 0x80 : 0;
+            if (payload.length < 126) {
+                frame.write(mask | payload.length);
+            } else {
+                frame.write(mask | 126);
+                frame.write(payload.length >>> 8);
+                frame.write(payload.length);
+            }
+            byte[] key = { 0x11, 0x22, 0x33, 0x44 };
+            if (masked) frame.write(key);
+            for (int i = 0; i < payload.length; i++) frame.write(masked ? payload[i] ^ key[i & 3] : payload[i]);
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+
+        void send(int b0, String payload) throws IOException {
+            send(b0, payload.getBytes(StandardCharsets.UTF_8), true);
+        }
+
+        // Payload of the next server frame; its opcode goes in opcode[0]
+        byte[] next(int[] opcode) throws IOException {
+            int b0 = in.readUnsignedByte();
+            int b1 = in.readUnsignedByte();
+            assertEquals(0, b1 & 0x80, "server frames are not masked");
+            long length = b1 & 0x7F;
+            if (length == 126) length = in.readUnsignedShort();
+            else if (length == 127) length = in.readLong();
+            opcode[0] = b0 & 0x0F;
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            return payload;
+        }
+
+        // Skips frames until a text frame containing the given string
+        String nextText(String containing) throws IOException {
+            int[] opcode = new int[1];
+            while (true) {
+                byte[] payload = next(opcode);
+                String text = new String(payload, StandardCharsets.UTF_8);
+                if (opcode[0] == 0x1 && text.contains(containing)) return text;
+            }
+        }
+
+        // Skips frames until a close frame; returns its status code
+        int closeStatus() throws IOException {
+            int[] opcode = new int[1];
+            while (true) {
+                byte[] payload = next(opcode);
+                if (opcode[0] == 0x8) return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    void framesEncodeTheirLength() {
+        for (int length : new int[] { 0, 125, 126, 65_535, 65_536 }) {
+            byte[] frame = WebSocketServer.frame(0x2, new byte[length]);
+            assertEquals(0x82, frame[0] & 0xFF);
+            int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+            assertEquals(header + length, frame.length);
+            int marker = frame[1] & 0xFF;
+            assertEquals(length < 126 ? length : length <= 0xFFFF ? 126 : 127, marker);
+        }
+    }
+
+    @Test
+    void messageFramesCarryTheMessageObjectAndTheNextSince() {
+        Message message = Message.restore("bob", "hi \"there\"", 1234);
+        byte[] frame = WebSocketServer.encodeMessage(41, message);
+        assertEquals(0x81, frame[0] & 0xFF);
+        assertEquals("{\"type\":\"message\",\"message\":{\"user\":\"bob\",\"time\":1234,\"text\":\"hi \\\"there\\\"\"},\"next\":42}",
+                new String(Arrays.copyOfRange(frame, 2, frame.length), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void connectsWithTheUserListAndTheBacklog() throws IOException {
+        try (Client client = new Client(null)) {
+            assertEquals("HTTP/1.1 101 Switching Protocols", client.status);
+            assertTrue(client.nextText("\"type\":\"message\"").contains("\"text\":\"first\""));
+            String users = client.nextText("\"users\":[");
+            assertTrue(users.startsWith("{\"type\":\"users\",\"version\":"), users);
+            assertTrue(users.endsWith("]}"), users);
+        }
+    }
+
+    @Test
+    void reassemblesFragmentedMessages() throws IOException {
+        try (Client client = new Client(null)) {
+            // "send frag" + "mented ü", split inside the ü
+            byte[] tail = "mented ü".getBytes(StandardCharsets.UTF_8);
+            client.send(0x01, "send frag");
+            client.send(0x00, Arrays.copyOf(tail, tail.length - 1), true);
+            client.send(0x80, new byte[] { tail[tail.length - 1] }, true);
+            assertTrue(client.nextText("fragmented").contains("\"text\":\"fragmented ü\""));
+        }
+    }
+
+    @Test
+    void answersPingsAndCloses() throws IOException {
+        try (Client client = new Client(null)) {
+            client.send(0x89, "are you there");
+            int[] opcode = new int[1];
+            byte[] payload;
+            do {
+                payload = client.next(opcode);
+            } while (opcode[0] != 0xA);
+            assertEquals("are you there", new String(payload, StandardCharsets.UTF_8));
+            client.send(0x88, new byte[] { 0x03, (byte) 0xE8 }, true);
+            assertEquals(1000, client.closeStatus());
+        }
+    }
+
+    @Test
+    void refusesUnmaskedOversizedAndUnknownFrames() throws IOException {
+        try (Client client = new Client(null)) {
+            client.send(0x81, "send unmasked".getBytes(StandardCharsets.UTF_8), false);
+            assertEquals(1002, client.closeStatus());
+        }
+        try (Client client = new Client(null)) {
+            // Refused on the declared length, before any payload arrives
+            client.out.write(new byte[] { (byte) 0x81, (byte) (0x80 | 127), 0, 0, 0, 0, 0, 1, 0, 1, 1, 2, 3, 4 });
+            client.out.flush();
+            assertEquals(1009, client.closeStatus());
+        }
+        try (Client client = new Client(null)) {
+            client.send(0x83, "reserved opcode");
+            assertEquals(1003, client.closeStatus());
+        }
+    }
+
+    @Test
+    void checksTheOriginAgainstTheHost() throws IOException {
+        try (Client client = new Client("http://evil.example")) {
+            assertEquals("HTTP/1.1 403 Forbidden", client.status);
+        }
+        try (Client client = new Client("http://LOCALHOST:8081")) {
+            assertEquals("HTTP/1.1 101 Switching Protocols", client.status);
+        }
+        assertTrue(WebSocketServer.sameHost("https://chat.example.com", "chat.example.com:8082"));
+        assertTrue(WebSocketServer.sameHost("http://[::1]:8081", "[::1]:8082"));
+        assertFalse(WebSocketServer.sameHost("null", "localhost:8082"));
+        assertFalse(WebSocketServer.sameHost("http://localhost.evil.example", "localhost:8082"));
+        assertFalse(WebSocketServer.sameHost("http://localhost", null));
+    }
+}